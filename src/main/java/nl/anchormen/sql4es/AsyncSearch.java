@@ -0,0 +1,84 @@
+package nl.anchormen.sql4es;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Completes a {@link CompletableFuture} with the {@link ResultSet} of a search (or scroll) request executed
+ * asynchronously by an {@link ESQueryState}. The response is converted on the provided executor so the transport
+ * threads of the client are never used to parse results. When the first page of a scroll contains no hits the
+ * next page is requested asynchronously as well before the response is converted.
+ *
+ * @author cversloot
+ *
+ */
+public class AsyncSearch implements ActionListener<SearchResponse>{
+
+	private final ESQueryState state;
+	private final Client client;
+	private final TimeValue keepAlive;
+	private final Executor executor;
+	private final boolean next;
+	private final boolean useLateral;
+	private final CompletableFuture<ResultSet> future = new CompletableFuture<ResultSet>();
+	private boolean scrolled = false;
+
+	/**
+	 * @param state the state the response belongs to
+	 * @param client
+	 * @param keepAlive the scroll timeout
+	 * @param executor used to convert the response
+	 * @param next true if the response is the next page of the current query, false if it is the first
+	 * @param useLateral
+	 */
+	AsyncSearch(ESQueryState state, Client client, TimeValue keepAlive, Executor executor, boolean next, boolean useLateral){
+		this.state = state;
+		this.client = client;
+		this.keepAlive = keepAlive;
+		this.executor = executor;
+		this.next = next;
+		this.useLateral = useLateral;
+	}
+
+	public CompletableFuture<ResultSet> getFuture(){
+		return future;
+	}
+
+	@Override
+	public void onResponse(final SearchResponse response) {
+		if(!next && !scrolled && response.getHits().getHits().length == 0 && response.getScrollId() != null){
+			// the first page of a scroll may be empty, continue with the next one
+			scrolled = true;
+			client.prepareSearchScroll(response.getScrollId()).setScroll(keepAlive).execute(this);
+			return;
+		}
+		try{
+			executor.execute(new Runnable(){
+				@Override
+				public void run() {
+					try {
+						future.complete(next ? state.convertNext(response, useLateral) : state.convertFirst(response, useLateral));
+					} catch (Throwable t) {
+						future.completeExceptionally(t);
+					}
+				}
+			});
+		}catch(RejectedExecutionException e){
+			future.completeExceptionally(new SQLException("Unable to convert response", e));
+		}
+	}
+
+	@Override
+	public void onFailure(Throwable t) {
+		future.completeExceptionally(new SQLException("Unable to execute query due to: "+t.getMessage(), t));
+	}
+
+}
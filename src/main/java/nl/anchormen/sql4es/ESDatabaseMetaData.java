@@ -19,7 +19,6 @@ import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.metadata.AliasMetaData;
 import org.elasticsearch.cluster.metadata.AliasOrIndex;
 import org.elasticsearch.cluster.metadata.IndexMetaData;
-import org.elasticsearch.cluster.metadata.MappingMetaData;
 import org.elasticsearch.common.collect.ImmutableOpenMap;
 
 import com.carrotsearch.hppc.cursors.ObjectCursor;
@@ -42,6 +41,7 @@ public class ESDatabaseMetaData implements DatabaseMetaData{
 	private int port;
 	private Client client;
 	private Properties clientInfo;
+	private static final Pattern LITERAL = Pattern.compile("[^.*?+\\[\\](){}|\\\\^$%]+");
 
 	public ESDatabaseMetaData(String host, int port, Client client, Properties clientInfo) {
 		this.host = host;
@@ -683,6 +683,29 @@ public class ESDatabaseMetaData implements DatabaseMetaData{
 		return false;
 	}
 
+	/**
+	 * Returns the pattern if it is a plain index or alias name which can be used to only fetch the 
+	 * metadata of the indices it refers to. Names containing a '.' are treated as a pattern because the dot 
+	 * matches any character.
+	 * @param pattern
+	 * @return the pattern or NULL if it is an actual pattern
+	 */
+	private static String scope(String pattern){
+		if(pattern == null || !LITERAL.matcher(pattern).matches()) return null;
+		return pattern;
+	}
+	
+	/**
+	 * Returns the mappings of the indices in the provided scope from the driver wide {@link MappingCache}
+	 * @param scope
+	 * @return
+	 * @throws SQLException
+	 */
+	private Map<String, Map<String, Map<String, Object>>> getMappings(String scope) throws SQLException{
+		long refreshMs = Utils.getIntProp(clientInfo, Utils.PROP_MAPPING_REFRESH_SEC, 60) * 1000L;
+		return MappingCache.get(client).getMappings(scope, refreshMs);
+	}
+	
 	private static String cleanPattern(String original){
 		if(original == null) return ".*";
 		return original.replaceAll("%",".*");
@@ -760,15 +783,15 @@ public class ESDatabaseMetaData implements DatabaseMetaData{
 		row.set(3, "GLOBAL TEMPORARY");
 		result.add(row);
 		
-		ImmutableOpenMap<String, IndexMetaData> indices = client.admin().cluster()
-			    .prepareState().get().getState()
-			    .getMetaData().getIndices();
-		for(ObjectCursor<String> index : indices.keys()){
-			if(schemaPattern != null && schemaPattern.length() > 0 && !Pattern.matches(schemaPattern, index.value)) continue;
-			for(ObjectCursor<String> type : indices.get(index.value).getMappings().keys()){
-				if(tableNamePattern != null  && tableNamePattern.length() > 0 && !Pattern.matches(tableNamePattern, type.value)) continue;
+		String scope = scope(schemaPattern);
+		Map<String, Map<String, Map<String, Object>>> indices = getMappings(scope);
+		for(String index : indices.keySet()){
+			// indices fetched for an index or alias name all belong to it
+			if(scope == null && schemaPattern != null && schemaPattern.length() > 0 && !Pattern.matches(schemaPattern, index)) continue;
+			for(String type : indices.get(index).keySet()){
+				if(tableNamePattern != null  && tableNamePattern.length() > 0 && !Pattern.matches(tableNamePattern, type)) continue;
 				row = result.getNewRow();
-				row.set(2, type.value);
+				row.set(2, type);
 				row.set(3, "TABLE");
 				result.add(row);
 			}
@@ -858,7 +881,6 @@ public class ESDatabaseMetaData implements DatabaseMetaData{
 		return result;
 	}
 
-	@SuppressWarnings({ "unchecked", "rawtypes" })
 	@Override
 	public ResultSet getColumns(String catalog, String schemaPattern, String tableNamePattern, String columnNamePattern)
 			throws SQLException {
@@ -897,19 +919,18 @@ public class ESDatabaseMetaData implements DatabaseMetaData{
 		//if(catalog != null && !catalog.equals(Utils.CATALOG)) return result;
 		
 		try{
-			ImmutableOpenMap<String, IndexMetaData> indices = client.admin().cluster()
-				    .prepareState().get().getState()
-				    .getMetaData().getIndices();
-			for(ObjectCursor<String> index : indices.keys()){
-				if(schemaPattern != null && !Pattern.matches(schemaPattern, index.value)) continue;
-				for(ObjectCursor<String> type : indices.get(index.value).getMappings().keys()){
-					if(tableNamePattern != null && !Pattern.matches(tableNamePattern, type.value)) continue;
+			String scope = scope(schemaPattern);
+			Map<String, Map<String, Map<String, Object>>> indices = getMappings(scope);
+			for(String index : indices.keySet()){
+				if(scope == null && schemaPattern != null && !Pattern.matches(schemaPattern, index)) continue;
+				for(String type : indices.get(index).keySet()){
+					if(tableNamePattern != null && !Pattern.matches(tableNamePattern, type)) continue;
 					
 					// add _id, _type and _index fields
 					List<Object> row = result.getNewRow();
 					row.set(0, null);
 					row.set(1, "No SQL Table schema available");
-					row.set(2, type.value);
+					row.set(2, type);
 					row.set(3, "_id");
 					row.set(4, Heading.getTypeIdForObject(new String())); 
 					row.set(5, "string"); 
@@ -921,7 +942,7 @@ public class ESDatabaseMetaData implements DatabaseMetaData{
 					row = result.getNewRow();				
 					row.set(0, null);
 					row.set(1, "No SQL Table schema available");
-					row.set(2, type.value);
+					row.set(2, type);
 					row.set(3, "_type");
 					row.set(4, Heading.getTypeIdForObject(new String())); 
 					row.set(5, "string");
@@ -933,7 +954,7 @@ public class ESDatabaseMetaData implements DatabaseMetaData{
 					row = result.getNewRow();				
 					row.set(0, null);
 					row.set(1, "No SQL Table schema available");
-					row.set(2, type.value);
+					row.set(2, type);
 					row.set(3, "_index");
 					row.set(4, Heading.getTypeIdForObject(new String())); 
 					row.set(5, "string"); 
@@ -942,9 +963,9 @@ public class ESDatabaseMetaData implements DatabaseMetaData{
 					row.set(23, "YES");
 					result.add(row);
 					
-					MappingMetaData typeMd = indices.get(index.value).getMappings().get(type.value);
-					if(typeMd != null && (Map)typeMd.getSourceAsMap().get("properties") != null){
-						addColumnInfo((Map)typeMd.getSourceAsMap().get("properties"), null, 0, type.value, result, columnNamePattern, lateral);
+					Map<String, Object> properties = indices.get(index).get(type);
+					if(properties != null){
+						addColumnInfo(properties, null, 0, type, result, columnNamePattern, lateral);
 					}
 				}
 			}
@@ -0,0 +1,140 @@
+package nl.anchormen.sql4es;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Base for forward only {@link ResultSet}s which only keep a limited buffer of rows and fetch the next 
+ * rows when the buffer has been consumed. Implementations fill the buffer in {@link #fetchRows()}.
+ * 
+ * @author cversloot
+ *
+ */
+public abstract class ESForwardOnlyResultSet extends ESResultSet {
+
+	private final long limit;
+	private long rowNr = -1;
+	private boolean exhausted = false;
+	private boolean afterLast = false;
+	private boolean closed = false;
+
+	public ESForwardOnlyResultSet(ESQueryState req, long total) {
+		super(req, total);
+		this.limit = req.getLimit();
+		if(limit > 0) this.total = Math.min(total, limit);
+	}
+
+	/**
+	 * Adds the next set of rows to the (empty) buffer of this resultset
+	 * @return false if no more rows are available
+	 * @throws SQLException
+	 */
+	protected abstract boolean fetchRows() throws SQLException;
+
+	/**
+	 * Fills the buffer with the first rows, must be called by implementations once they are initialized
+	 * @throws SQLException
+	 */
+	protected void fetchFirst() throws SQLException{
+		if(!fetchRows()) exhausted = true;
+	}
+
+	@Override
+	public boolean next() throws SQLException {
+		if(closed || exhausted) return false;
+		if(limit > 0 && rowNr + 1 >= limit){
+			afterLast = true;
+			return false;
+		}
+		if(cursor + 1 >= store.size()){
+			store.clear();
+			cursor = -1;
+			if(!fetchRows()){
+				exhausted = true;
+				afterLast = rowNr >= 0; // an empty resultset is never after its last row
+				return false;
+			}
+		}
+		cursor++;
+		rowNr++;
+		return true;
+	}
+
+	@Override
+	public long getOffset(){
+		return rowNr - cursor;
+	}
+
+	@Override
+	public void close() throws SQLException {
+		this.closed = true;
+		this.store.clear();
+	}
+
+	@Override
+	public int getType() throws SQLException {
+		return ResultSet.TYPE_FORWARD_ONLY;
+	}
+
+	@Override
+	public int getRow() throws SQLException {
+		if(afterLast) return 0;
+		return (int)rowNr + 1;
+	}
+
+	@Override
+	public boolean isBeforeFirst() throws SQLException {
+		return rowNr < 0;
+	}
+
+	@Override
+	public boolean isFirst() throws SQLException {
+		return rowNr == 0;
+	}
+
+	@Override
+	public boolean isAfterLast() throws SQLException {
+		return closed || afterLast;
+	}
+
+	@Override
+	public boolean isLast() throws SQLException {
+		throw new SQLException("isLast is not supported on a forward only resultset");
+	}
+
+	@Override
+	public void beforeFirst() throws SQLException {
+		throw new SQLException("Unable to move the cursor of a forward only resultset");
+	}
+
+	@Override
+	public void afterLast() throws SQLException {
+		throw new SQLException("Unable to move the cursor of a forward only resultset");
+	}
+
+	@Override
+	public boolean first() throws SQLException {
+		throw new SQLException("Unable to move the cursor of a forward only resultset");
+	}
+
+	@Override
+	public boolean last() throws SQLException {
+		throw new SQLException("Unable to move the cursor of a forward only resultset");
+	}
+
+	@Override
+	public boolean absolute(int row) throws SQLException {
+		throw new SQLException("Unable to move the cursor of a forward only resultset");
+	}
+
+	@Override
+	public boolean relative(int rows) throws SQLException {
+		throw new SQLException("Unable to move the cursor of a forward only resultset");
+	}
+
+	@Override
+	public boolean previous() throws SQLException {
+		throw new SQLException("Unable to move the cursor of a forward only resultset");
+	}
+
+}
@@ -0,0 +1,113 @@
+package nl.anchormen.sql4es;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+
+import com.facebook.presto.sql.tree.QueryBody;
+
+/**
+ * Executes a batch of independent SELECT statements as a single multi search request. Every query gets its own
+ * {@link ESQueryState} so the resulting ResultSets can be used (and scrolled) independently. The responses are
+ * converted concurrently using the provided executor. Shards are never scrolled in parallel (scroll.parallel) as the
+ * multi search request returns a single response per query.
+ *
+ * @author cversloot
+ *
+ */
+public class ESMultiQueryState {
+
+	private final Client client;
+	private final Statement statement;
+	private final List<ESQueryState> states = new ArrayList<ESQueryState>();
+
+	public ESMultiQueryState(Client client, Statement statement){
+		this.client = client;
+		this.statement = statement;
+	}
+
+	/**
+	 * Builds the request for the provided query and adds it to the batch
+	 * @param sql
+	 * @param query
+	 * @param indices
+	 * @throws SQLException
+	 */
+	public void add(String sql, QueryBody query, String... indices) throws SQLException{
+		ESQueryState state = new ESQueryState(client, statement);
+		state.buildRequest(sql, query, indices);
+		states.add(state);
+	}
+
+	/**
+	 * Executes all queries added as a single multi search request. If any of the queries fails the scrolls 
+	 * opened by the others are cleared and none of the results is returned.
+	 * Note that converting a response may block on a scroll request (when the first page of a scroll is empty) 
+	 * so an executor meant for CPU bound work, like the common ForkJoinPool, can be occupied while waiting.
+	 * @param executor used to convert the responses
+	 * @return the ResultSets in the order the queries were added
+	 * @throws SQLException if any of the queries failed
+	 */
+	public List<ResultSet> execute(Executor executor) throws SQLException{
+		if(states.isEmpty()) return new ArrayList<ResultSet>();
+		MultiSearchRequestBuilder multiSearch = client.prepareMultiSearch();
+		for(ESQueryState state : states) multiSearch.add(state.getRequest());
+		MultiSearchResponse.Item[] items = multiSearch.execute().actionGet().getResponses();
+
+		for(int i=0; i<items.length; i++){
+			if(!items[i].isFailure()) continue;
+			// none of the responses will be converted, release the scrolls of the successful ones
+			for(MultiSearchResponse.Item item : items){
+				if(!item.isFailure() && item.getResponse().getScrollId() != null){
+					client.prepareClearScroll().addScrollId(item.getResponse().getScrollId()).execute();
+				}
+			}
+			throw new SQLException("Query "+(i+1)+" of the batch failed due to: "+items[i].getFailureMessage());
+		}
+		List<CompletableFuture<ResultSet>> futures = new ArrayList<CompletableFuture<ResultSet>>(items.length);
+		for(int i=0; i<items.length; i++){
+			futures.add(convert(states.get(i), items[i].getResponse(), executor));
+		}
+		List<ResultSet> results = new ArrayList<ResultSet>(futures.size());
+		try{
+			for(CompletableFuture<ResultSet> future : futures) results.add(future.join());
+		}catch(CompletionException e){
+			if(e.getCause() instanceof SQLException) throw (SQLException)e.getCause();
+			throw new SQLException("Unable to convert results due to: "+e.getCause(), e.getCause());
+		}
+		return results;
+	}
+
+	private CompletableFuture<ResultSet> convert(final ESQueryState state, final SearchResponse response, Executor executor){
+		return CompletableFuture.supplyAsync(new Supplier<ResultSet>(){
+			@Override
+			public ResultSet get() {
+				try {
+					return state.convertFirst(response, state.useLateral());
+				} catch (SQLException e) {
+					throw new CompletionException(e);
+				}
+			}
+		}, executor);
+	}
+
+	/**
+	 * Closes the states of all queries in the batch (and thereby their ResultSets and scrolls)
+	 * @throws SQLException
+	 */
+	public void close() throws SQLException{
+		for(ESQueryState state : states) state.close();
+		states.clear();
+	}
+}
@@ -0,0 +1,116 @@
+package nl.anchormen.sql4es;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+
+import nl.anchormen.sql4es.model.Column;
+import nl.anchormen.sql4es.model.expression.IComparison;
+import nl.anchormen.sql4es.parse.se.SearchAggregationParser;
+
+/**
+ * A forward only {@link ResultSet} for grouped queries with more groups than fit in a single response. The
+ * buckets of the first GROUP BY key are requested ordered by key, one page at a time. When a page has been 
+ * consumed the next page is requested through the {@link ESQueryState} for the keys after the last key received.
+ * Only a single page of buckets is held by elasticsearch and this resultset at any time. Only the first GROUP BY
+ * key is paged: every group on a page holds up to fetch.size buckets for each further key, so a page of a 
+ * query grouping on multiple keys can be up to group.page.size * fetch.size buckets (per level) and inner keys 
+ * beyond fetch.size are not returned.
+ * Documents with multiple values for the group key (arrays) also match the pages after the one with their lowest
+ * value and add buckets for keys that were returned already (with a partial count). These are dropped and when a 
+ * page holds nothing but such keys the next request asks for twice as many buckets until it gets past them.
+ *
+ * @author cversloot
+ *
+ */
+public class ESPagedAggregationResultSet extends ESForwardOnlyResultSet {
+
+	private final SearchAggregationParser aggParser;
+	private final IComparison having;
+	private final int pageSize;
+	private SearchResponse response;
+	private String groupName = null;
+	private Object lastKey = null;
+	private int size;
+
+	public ESPagedAggregationResultSet(ESQueryState req, SearchResponse response, SearchAggregationParser aggParser,
+			IComparison having, int pageSize) throws SQLException {
+		super(req, Long.MAX_VALUE);
+		this.response = response;
+		this.aggParser = aggParser;
+		this.having = having;
+		this.pageSize = pageSize;
+		this.size = pageSize;
+		fetchFirst();
+	}
+
+	/**
+	 * Parses the buckets of the next page that results in any rows (pages can be empty after applying HAVING)
+	 * @return false if all pages have been consumed
+	 * @throws SQLException
+	 */
+	@Override
+	protected boolean fetchRows() throws SQLException {
+		while(store.size() == 0){
+			Object afterKey = lastKey;
+			if(response == null){
+				if(lastKey == null) return false;
+				response = req.nextGroupPage(groupName, lastKey, size);
+			}
+			Terms groups = null;
+			for(Aggregation agg : response.getAggregations()){
+				if(agg instanceof Terms) groups = (Terms)agg;
+				aggParser.parseAggregation(agg, this);
+			}
+			response = null;
+			List<Terms.Bucket> buckets = groups == null ? null : groups.getBuckets();
+			if(groups != null) groupName = groups.getName();
+			if(buckets == null || buckets.size() < size){
+				lastKey = null; // a page which is not full is the last one
+			}else{
+				Object key = buckets.get(buckets.size()-1).getKey();
+				if(afterKey == null || compareKeys(key, afterKey) > 0){
+					lastKey = key;
+					size = pageSize;
+				}else{
+					size = size * 2; // only keys returned before, request more buckets after the same key
+				}
+			}
+			if(afterKey != null) dropReturnedKeys(afterKey);
+			if(having != null) filterHaving(having);
+		}
+		executeComputations();
+		return true;
+	}
+
+	/**
+	 * Removes the rows of groups with a key up to (and including) the provided one, these have been returned before
+	 * @param afterKey
+	 */
+	private void dropReturnedKeys(Object afterKey){
+		Column group = getHeading().getColumnByLabel(groupName);
+		int[] keep = new int[store.size()];
+		int kept = 0;
+		for(int i=0; i<store.size(); i++){
+			Object key = store.get(i, group.getIndex());
+			if(key != null && compareKeys(key, afterKey) > 0) keep[kept++] = i;
+		}
+		if(kept < store.size()) store.reorder(Arrays.copyOf(keep, kept));
+	}
+
+	/**
+	 * Compares two keys of the terms aggregation which are either numbers or strings
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static int compareKeys(Object key1, Object key2){
+		if(key1.getClass() != key2.getClass() && key1 instanceof Number && key2 instanceof Number) 
+			return Double.compare(((Number)key1).doubleValue(), ((Number)key2).doubleValue());
+		return ((Comparable)key1).compareTo(key2);
+	}
+
+}
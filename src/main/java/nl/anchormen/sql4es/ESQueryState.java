@@ -4,21 +4,33 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
+import org.elasticsearch.action.admin.cluster.shards.ClusterSearchShardsGroup;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHits;
 import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.bucket.terms.TermsBuilder;
 
 import com.facebook.presto.sql.tree.Explain;
 import com.facebook.presto.sql.tree.Query;
 import com.facebook.presto.sql.tree.QueryBody;
 
+import nl.anchormen.sql4es.jdbc.ESConnection;
 import nl.anchormen.sql4es.jdbc.ESStatement;
+import nl.anchormen.sql4es.jdbc.StatementCache;
 import nl.anchormen.sql4es.model.Column;
 import nl.anchormen.sql4es.model.Heading;
 import nl.anchormen.sql4es.model.OrderBy;
@@ -26,6 +38,7 @@ import nl.anchormen.sql4es.model.Utils;
 import nl.anchormen.sql4es.model.Column.Operation;
 import nl.anchormen.sql4es.model.expression.IComparison;
 import nl.anchormen.sql4es.parse.se.SearchAggregationParser;
+import nl.anchormen.sql4es.parse.se.PathNode;
 import nl.anchormen.sql4es.parse.se.SearchHitParser;
 import nl.anchormen.sql4es.parse.sql.QueryParser;
 import org.slf4j.Logger;
@@ -43,8 +56,8 @@ public class ESQueryState{
 	// relevant resources
 	private final QueryParser parser = new QueryParser();
 	private final Client client;
-	private final Properties props;
-	private final Statement statement;
+	private Properties props;
+	private Statement statement;
 	private final SearchHitParser hitParser = new SearchHitParser();
 	private final SearchAggregationParser aggParser = new SearchAggregationParser();
 	private final Logger logger = LoggerFactory.getLogger(ESQueryState.class);
@@ -54,10 +67,16 @@ public class ESQueryState{
 	private SearchRequestBuilder request;
 	private ESResultSet result = null;
 	private SearchResponse esResponse;
+	private ScrollPrefetcher prefetcher = null;
+	private ParallelScroll parallelScroll = null;
 	private Heading heading = new Heading();;
+	private PathNode pathIndex = null;
 	private int limit = -1;
 	private IComparison having = null;
 	private List<OrderBy> orderings = new ArrayList<OrderBy>();
+	private QueryBuilder groupPagingQuery = null;
+	private TermsBuilder groupPagingAgg = null;
+	private boolean countOnly = false;
 
 	/**
 	 * Creates a QueryState using the specified client. This involves retrieving index and type information
@@ -72,6 +91,17 @@ public class ESQueryState{
 		this.props = statement.getConnection().getClientInfo();
 	}
 	
+	/**
+	 * Assigns this (pooled) state to the provided statement, the properties of its connection are used from now on
+	 * @param statement
+	 * @throws SQLException
+	 */
+	public void setStatement(Statement statement) throws SQLException{
+		this.statement = statement;
+		this.props = statement.getConnection().getClientInfo();
+		this.maxRows = -1;
+	}
+	
 	/**
 	 * Builds the Elasticsearch query to be executed on the specified indexes. This function refreshes the 
 	 * state after which it is not possible to retrieve results for any previously build queries. 
@@ -82,17 +112,36 @@ public class ESQueryState{
 	 */
 	@SuppressWarnings("unchecked")
 	public void buildRequest(String sql, QueryBody query, String... indices) throws SQLException {
-		if(this.esResponse != null && this.esResponse.getScrollId() != null){
-			client.prepareClearScroll().addScrollId(this.esResponse.getScrollId()).execute();
-		}
+		clearScroll();
 		logger.info("es index: " + indices + " ; " + "sql: " + sql);
+		this.pathIndex = null;
+		StatementCache cache = statement.getConnection().unwrap(ESConnection.class).getStatementCache();
+		String planKey = sql+"\u0000"+Arrays.toString(indices)+"\u0000"+maxRows;
+		QueryPlan plan = cache.getPlan(planKey);
+		if(plan != null){
+			// executed before, use the planned request instead of parsing the query again
+			this.request = plan.buildRequest(client, indices);
+			Object[] copy = plan.copy();
+			this.heading = (Heading)copy[0];
+			this.having = (IComparison)copy[1];
+			this.orderings = plan.getOrderings();
+			this.limit = plan.getLimit();
+			this.groupPagingQuery = null;
+			this.groupPagingAgg = null;
+			this.countOnly = plan.isCountOnly();
+			return;
+		}
+		long planVersion = cache.getPlanVersion();
 		this.request = client.prepareSearch(indices);
 		Map<String, Map<String, Integer>> esInfo = (Map<String, Map<String, Integer>>)Utils.getObjectProperty(props, Utils.PROP_TABLE_COLUMN_MAP);
 		Object[] info = parser.parse(sql, query, maxRows, request, this.statement.getConnection().getClientInfo(), esInfo);
 		this.heading = (Heading)info[0];
-		if(info[1] != null) having = (IComparison)info[1];
-		if(info[2] != null) orderings = (List<OrderBy>)info[2];
+		this.having = (IComparison)info[1];
+		this.orderings = info[2] != null ? (List<OrderBy>)info[2] : new ArrayList<OrderBy>();
 		this.limit = (int)info[3];
+		this.groupPagingQuery = (QueryBuilder)info[4];
+		this.countOnly = (Boolean)info[5];
+		this.groupPagingAgg = (TermsBuilder)info[6];
 		
 		// add highlighting
 		for(Column column : heading.columns()){
@@ -101,6 +150,11 @@ public class ESQueryState{
 						Utils.getIntProp(props, Utils.PROP_FRAGMENT_NUMBER, 1));
 			}
 		}
+		
+		// requests fetching groups page by page change their query for every page and are not cached
+		if(groupPagingQuery == null){
+			cache.putPlan(planKey, planVersion, new QueryPlan(request, heading, having, orderings, limit, countOnly));
+		}
 	}
 	
 	/**
@@ -124,7 +178,21 @@ public class ESQueryState{
 	 * @throws SQLException
 	 */
 	public ResultSet execute() throws SQLException {
-		return this.execute(Utils.getBooleanProp(props, Utils.PROP_RESULT_NESTED_LATERAL, true));
+		return this.execute(useLateral());
+	}
+	
+	/**
+	 * @return true if nested objects must be exploded into multiple rows
+	 */
+	boolean useLateral(){
+		return Utils.getBooleanProp(props, Utils.PROP_RESULT_NESTED_LATERAL, true);
+	}
+	
+	/**
+	 * @return the request built for the current query, used by {@link ESMultiQueryState} to execute it as part of a batch
+	 */
+	SearchRequestBuilder getRequest(){
+		return request;
 	}
 	
 	/**
@@ -137,14 +205,103 @@ public class ESQueryState{
 	ResultSet execute(boolean useLateral) throws SQLException{
 		if(request == null) throw new SQLException("Unable to execute query because it has not correctly been parsed");
 		//System.out.println(request);
-		this.esResponse = this.request.execute().actionGet();
-		//System.out.println(esResponse);
+		clearScroll();
+		int shards = 0;
+		if(scrollsInParallel()){
+			shards = countShards(request.request().indices());
+		}
+		SearchResponse response;
+		if(shards > 1){
+			// scroll all shards concurrently, pages are consumed in the order they arrive
+			this.parallelScroll = new ParallelScroll(client, request.request(), shards, 
+					Utils.getIntProp(props, Utils.PROP_SCROLL_PARALLEL, 0), keepAlive());
+			response = parallelScroll.next();
+		}else{
+			response = this.request.execute().actionGet();
+		}
+		return convertFirst(response, useLateral);
+	}
+	
+	/**
+	 * @return true if the current query scrolls and scroll.parallel is set, in which case the shards are scrolled 
+	 * concurrently (if there are more than one)
+	 */
+	private boolean scrollsInParallel(){
+		return Utils.getIntProp(props, Utils.PROP_SCROLL_PARALLEL, 0) > 0 && request.request().scroll() != null 
+				&& getLimit() <= 0 && orderings.isEmpty();
+	}
+	
+	/**
+	 * Executes the current query without blocking the calling thread. The response is converted into 
+	 * a ResultSet using the provided executor. Only one query can be executed by a state at the same time. 
+	 * Queries scrolling shards in parallel (scroll.parallel) are executed entirely by the executor because
+	 * counting the shards and waiting for the first page of any shard block. 
+	 * @param executor
+	 * @return
+	 */
+	public CompletableFuture<ResultSet> executeAsync(Executor executor){
+		AsyncSearch search = new AsyncSearch(this, client, keepAlive(), executor, false, useLateral());
+		if(request == null){
+			search.getFuture().completeExceptionally(new SQLException("Unable to execute query because it has not correctly been parsed"));
+		}else if(scrollsInParallel()){
+			clearScroll();
+			final boolean useLateral = useLateral();
+			return CompletableFuture.supplyAsync(new Supplier<ResultSet>(){
+				@Override
+				public ResultSet get() {
+					try {
+						return execute(useLateral);
+					} catch (SQLException e) {
+						throw new CompletionException(e);
+					}
+				}
+			}, executor);
+		}else{
+			clearScroll();
+			request.execute(search);
+		}
+		return search.getFuture();
+	}
+	
+	/**
+	 * Converts the first response of the current query into a ResultSet and starts prefetching next pages if configured
+	 * @param response
+	 * @param useLateral
+	 * @return
+	 * @throws SQLException
+	 */
+	ResultSet convertFirst(SearchResponse response, boolean useLateral) throws SQLException{
+		this.esResponse = response;
+		int prefetch = Utils.getIntProp(props, Utils.PROP_SCROLL_PREFETCH, 0);
+		if(prefetch > 0 && parallelScroll == null && esResponse.getScrollId() != null && esResponse.getAggregations() == null){
+			// start fetching the next page(s) while the first one is being converted
+			this.prefetcher = new ScrollPrefetcher(client, esResponse.getScrollId(), keepAlive(), prefetch);
+		}
 		ESResultSet rs = convertResponse(useLateral);
 		if(rs == null) throw new SQLException("No result found for this query");
 		if(this.result != null) this.result.close();
 		this.result = rs;
 		return this.result;
 	}
+	
+	/**
+	 * Converts the next page of the current query into a ResultSet 
+	 * @param response
+	 * @param useLateral
+	 * @return the ResultSet or NULL if the page does not contain any rows
+	 * @throws SQLException
+	 */
+	ResultSet convertNext(SearchResponse response, boolean useLateral) throws SQLException{
+		this.esResponse = response;
+		ESResultSet rs = convertResponse(useLateral);
+		if(rs.getNrRows() == 0) return null;
+		result = rs;
+		return result;
+	}
+	
+	private TimeValue keepAlive(){
+		return new TimeValue(Utils.getIntProp(props, Utils.PROP_SCROLL_TIMEOUT_SEC, 60)*1000);
+	}
 
 	/**
 	 * Parses the result from ES and converts it into an ESResultSet object
@@ -153,12 +310,27 @@ public class ESQueryState{
 	 */
 	private ESResultSet convertResponse(boolean useLateral) throws SQLException{
 		if(esResponse.getHits().getHits().length == 0 && esResponse.getScrollId() != null){
-			esResponse = client.prepareSearchScroll(esResponse.getScrollId())
-					.setScroll(new TimeValue(Utils.getIntProp(props, Utils.PROP_SCROLL_TIMEOUT_SEC, 60)*1000))
-					.execute().actionGet();
+			esResponse = scroll();
+		}
+		// the count is the total number of hits
+		if(countOnly){
+			ESResultSet rs = new ESResultSet(this);
+			List<Object> row = rs.getNewRow();
+			for(Column column : heading.columns()){
+				if(column.getOp() == Operation.COUNT) row.set(column.getIndex(), esResponse.getHits().getTotalHits());
+			}
+			rs.add(row);
+			if(having != null) rs.filterHaving(having);
+			rs.setTotal(rs.getNrRows());
+			rs.executeComputations();
+			return rs;
 		}
 		// parse aggregated result
-		if(esResponse.getAggregations() != null){
+		if(esResponse.getAggregations() != null && groupPagingQuery != null){
+			// groups are fetched page by page while the client iterates the resultset
+			return new ESPagedAggregationResultSet(this, esResponse, aggParser, having, 
+					Utils.getIntProp(props, Utils.PROP_GROUP_PAGE_SIZE, 0));
+		}else if(esResponse.getAggregations() != null){
 			ESResultSet rs = new ESResultSet(this);
 			for(Aggregation agg : esResponse.getAggregations()){
 				aggParser.parseAggregation(agg, rs);
@@ -171,43 +343,168 @@ public class ESQueryState{
 			}
 			rs.executeComputations();
 			return rs;
+		}else if(esResponse.getScrollId() != null && Utils.getBooleanProp(props, Utils.PROP_RESULT_STREAMING, false)){
+			// convert hits lazily while the client iterates the resultset
+			return new ESStreamingResultSet(this, esResponse.getHits(), hitParser, useLateral);
 		}else{
 			// parse plain document hits
 			long total = esResponse.getHits().getTotalHits();
 			if(getLimit() > 0) total = Math.min(total, getLimit());
-			ESResultSet rs = hitParser.parse(esResponse.getHits(), this.heading, total, Utils.getIntProp(props, Utils.PROP_DEFAULT_ROW_LENGTH, 1000), useLateral, 0);
+			ESResultSet rs = hitParser.parse(esResponse.getHits(), this.heading, getPathIndex(), total, Utils.getIntProp(props, Utils.PROP_DEFAULT_ROW_LENGTH, 1000), useLateral, 0);
 			rs.executeComputations();
 			return rs;
 		}
 	}
 	
+	/**
+	 * Fetches the next page of the current scroll, either from the prefetched pages or by
+	 * requesting it directly
+	 * @return
+	 * @throws SQLException 
+	 */
+	private SearchResponse scroll() throws SQLException{
+		if(parallelScroll != null) return parallelScroll.next();
+		if(prefetcher != null) return prefetcher.next();
+		return client.prepareSearchScroll(esResponse.getScrollId()).setScroll(keepAlive()).execute().actionGet();
+	}
+	
+	/**
+	 * Stops any prefetching and clears the scroll of the current response (if any)
+	 */
+	private void clearScroll(){
+		String scrollId = esResponse == null ? null : esResponse.getScrollId();
+		if(parallelScroll != null){
+			parallelScroll.close(); // clears the scrolls of all shards
+			scrollId = null;
+			parallelScroll = null;
+		}
+		if(prefetcher != null){
+			prefetcher.close();
+			scrollId = prefetcher.getScrollId();
+			prefetcher = null;
+		}
+		if(scrollId != null){
+			client.prepareClearScroll().addScrollId(scrollId).execute();
+		}
+		esResponse = null;
+	}
+	
+	/**
+	 * Fetches the next page of hits for the current scroll. Used by {@link ESStreamingResultSet} to
+	 * pull pages while it is being iterated.
+	 * @return the hits of the next page or NULL if the current query does not scroll
+	 */
+	SearchHits nextScrollPage() throws SQLException {
+		if(esResponse == null || esResponse.getScrollId() == null) return null;
+		esResponse = scroll();
+		return esResponse.getHits();
+	}
+	
+	/**
+	 * Fetches the next page of groups for the current query, containing the groups with a key after 
+	 * the provided one. Used by {@link ESPagedAggregationResultSet} while it is being iterated.
+	 * @param groupName the name of the aggregation on the first group key
+	 * @param lastKey the last key of the previous page
+	 * @param size the number of groups to fetch
+	 * @return
+	 * @throws SQLException
+	 */
+	SearchResponse nextGroupPage(String groupName, Object lastKey, int size) throws SQLException {
+		Column group = heading.getColumnByLabel(groupName);
+		if(group == null || groupPagingQuery == null || groupPagingAgg == null) throw new SQLException("Unable to fetch next page of groups for "+groupName);
+		request.setQuery(QueryBuilders.boolQuery().must(groupPagingQuery)
+				.filter(QueryBuilders.rangeQuery(group.getColumn()).gt(lastKey)));
+		groupPagingAgg.size(size);
+		try{
+			esResponse = request.execute().actionGet();
+		}finally{
+			// restore the original query so executing the request again starts at the first page
+			request.setQuery(groupPagingQuery);
+			groupPagingAgg.size(Utils.getIntProp(props, Utils.PROP_GROUP_PAGE_SIZE, 0));
+		}
+		return esResponse;
+	}
+	
 	public ResultSet moreResutls(boolean useLateral) throws SQLException {
-		if(result != null && result.getOffset() + result.getNrRows() >= result.getTotal()) return null;
+		if(result instanceof ESForwardOnlyResultSet) return null; // already streams all pages
+		if(esResponse == null) return null;
+		// the total of a page of a parallel scroll only reflects the shard it was fetched from
+		if(parallelScroll == null && result != null && result.getOffset() + result.getNrRows() >= result.getTotal()) return null;
 		if(result != null) result.close();
 		if(esResponse.getScrollId() != null ){
-			esResponse = client.prepareSearchScroll(esResponse.getScrollId())
-					.setScroll(new TimeValue(Utils.getIntProp(props, Utils.PROP_SCROLL_TIMEOUT_SEC, 60)*1000))
-					.execute().actionGet();
-			ESResultSet rs = convertResponse(useLateral);
-			if(rs.getNrRows() == 0) return null;
-			result = rs;
-			return result;
+			return convertNext(scroll(), useLateral);
 		}
 		return null;
 	}
 	
+	/**
+	 * Fetches the next page of the current query without blocking the calling thread. 
+	 * @param useLateral
+	 * @param executor used to convert the page (and to wait for prefetched pages)
+	 * @return a future completed with the next ResultSet or NULL if there are no more results
+	 */
+	public CompletableFuture<ResultSet> moreResultsAsync(final boolean useLateral, Executor executor) {
+		if(result instanceof ESForwardOnlyResultSet || esResponse == null || esResponse.getScrollId() == null) 
+			return CompletableFuture.completedFuture(null);
+		if(parallelScroll == null && result != null && result.getOffset() + result.getNrRows() >= result.getTotal()) 
+			return CompletableFuture.completedFuture(null);
+		try {
+			if(result != null) result.close();
+		} catch (SQLException e) {
+			logger.warn("Unable to close resultset", e);
+		}
+		if(parallelScroll != null || prefetcher != null){
+			// pages are already being fetched in the background
+			return CompletableFuture.supplyAsync(new Supplier<ResultSet>(){
+				@Override
+				public ResultSet get() {
+					try {
+						return convertNext(scroll(), useLateral);
+					} catch (SQLException e) {
+						throw new CompletionException(e);
+					}
+				}
+			}, executor);
+		}
+		AsyncSearch search = new AsyncSearch(this, client, keepAlive(), executor, true, useLateral);
+		client.prepareSearchScroll(esResponse.getScrollId()).setScroll(keepAlive()).execute(search);
+		return search.getFuture();
+	}
+	
+	/**
+	 * Determines the number of shards to scroll in parallel which is the highest number of shards
+	 * of any of the provided indices.
+	 * @param indices
+	 * @return
+	 */
+	private int countShards(String[] indices){
+		int shards = 0;
+		for(ClusterSearchShardsGroup group : client.admin().cluster().prepareSearchShards(indices).get().getGroups()){
+			shards = Math.max(shards, group.getShardId() + 1);
+		}
+		return shards;
+	}
+	
 	public Heading getHeading() {
 		return heading;
 	}
 	
+	/**
+	 * Gets the trie of fields to read from hits for the current query, it is built once and reused 
+	 * for all pages of the query
+	 * @return
+	 */
+	PathNode getPathIndex(){
+		if(pathIndex == null) pathIndex = hitParser.buildIndex(heading);
+		return pathIndex;
+	}
+	
 	public Statement getStatement(){
 		return statement;
 	}
 
 	public void close() throws SQLException {
-		if(this.esResponse != null && this.esResponse.getScrollId() != null){
-			client.prepareClearScroll().addScrollId(this.esResponse.getScrollId()).execute();
-		}
+		clearScroll();
 		if(this.result != null) result.close();
 	}
 
@@ -25,7 +25,6 @@ import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
@@ -33,36 +32,44 @@ import java.util.Map;
 import org.joda.time.DateTime;
 
 import nl.anchormen.sql4es.model.Column;
+import nl.anchormen.sql4es.model.ColumnStore;
 import nl.anchormen.sql4es.model.Heading;
 import nl.anchormen.sql4es.model.OrderBy;
 import nl.anchormen.sql4es.model.Utils;
+import nl.anchormen.sql4es.model.expression.CalculationProgram;
 import nl.anchormen.sql4es.model.expression.IComparison;
 
 public class ESResultSet implements ResultSet {
 
-	private List<List<Object>> rows = new ArrayList<List<Object>>();
+	protected ColumnStore store;
 	private Heading heading;
-	private int cursor = -1;
-	private ESQueryState req;
-	private long total;
-	private long offset = 0;
+	protected int cursor = -1;
+	protected ESQueryState req;
+	protected long total;
+	protected long offset = 0;
 	private int defaultRowLength = 1000;
+	private boolean wasNull = false;
 
 	public ESResultSet(ESQueryState req){
 		this.heading = req.getHeading();
+		this.store = new ColumnStore(heading);
 		this.req = req;
 		this.total = 0;
-		this.defaultRowLength = req.getIntProp(Utils.PROP_DEFAULT_ROW_LENGTH, 1000);
+		// the heading of aggregated results is complete so rows do not need to grow
+		this.defaultRowLength = heading.hasAllCols() ? req.getIntProp(Utils.PROP_DEFAULT_ROW_LENGTH, 1000) 
+				: heading.getColumnCount();
 	}
 	
 	public ESResultSet(Heading heading, int total, int defaultRowLength){
 		this.heading = heading;
+		this.store = new ColumnStore(heading);
 		this.total = total;
 		this.defaultRowLength = defaultRowLength;
 	}
 	
 	public ESResultSet(ESQueryState req, long total) {
 		this.heading = req.getHeading();
+		this.store = new ColumnStore(heading);
 		this.req = req;
 		this.total = total;
 		this.defaultRowLength = req.getIntProp(Utils.PROP_DEFAULT_ROW_LENGTH, 1000);
@@ -83,7 +90,8 @@ public class ESResultSet implements ResultSet {
 			if(h.isVisible() ) sb.append(h.getLabel()+", ");
 		}
 		sb.append("\r\n");
-		for(List<Object> row : rows){
+		for(int r=0; r<store.size(); r++){
+			List<Object> row = store.getRow(r);
 			for(Column h : heading.columns()){
 				Object o = h.getIndex() >= row.size() ? null : row.get(h.getIndex());
 				if(h.isVisible() ) sb.append((o instanceof ResultSet ? "\r\n" : "")+o+(o instanceof ResultSet ? "\r\n" : ", "));
@@ -95,7 +103,8 @@ public class ESResultSet implements ResultSet {
 	
 	/**
 	 * Creates a new row for this resultset with proper initial capacity (if known) and initialized with NULL's. 
-	 * The row still needs to be added to the resultset!
+	 * The row still needs to be added to the resultset! Rows are copied into the column store of this resultset
+	 * when added so they can be discarded afterwards.
 	 * @return
 	 */
 	public List<Object> getNewRow(){
@@ -104,24 +113,29 @@ public class ESResultSet implements ResultSet {
 	}
 	
 	public void add(List<Object> row) {
-		rows.add(row.subList(0, heading.getColumnCount()));
-		if(rows.size() > total) total = rows.size(); // can happen when rows are being exploded
+		store.add(row, heading.getColumnCount());
+		if(store.size() > total) total = store.size(); // can happen when rows are being exploded
 	}
 	
 	public int rowCount(){
-		return rows.size();
+		return store.size();
 	}
 	
+	/**
+	 * Provides a view on the row with the given index, changes made to it are written into this resultset
+	 * @param index
+	 * @return
+	 */
 	public List<Object> getRow(int index){
-		return this.rows.get(index);
+		return this.store.getRow(index);
 	}
 	
 	public void orderBy(List<OrderBy> order){
-		Collections.sort(rows, new ResultRowComparator(order));
+		store.sort(new ResultRowComparator(order));
 	}
 	
 	public int getNrRows(){
-		return rows.size();
+		return store.size();
 	}
 	
 	public void setTotal(int total){
@@ -142,32 +156,34 @@ public class ESResultSet implements ResultSet {
 	 * @throws SQLException
 	 */
 	public void filterHaving(IComparison having) throws SQLException{
-		for(int i=0; i<rows.size(); i++){
-			if(!having.evaluate(rows.get(i))){
-				rows.remove(i);
-				i--;
-			}
+		int[] keep = new int[store.size()];
+		int kept = 0;
+		for(int i=0; i<store.size(); i++){
+			if(having.evaluate(store.getRow(i))) keep[kept++] = i;
 		}
-		this.total = rows.size();
+		store.reorder(Arrays.copyOf(keep, kept));
+		this.total = store.size();
 	}
 	
 	/**
-	 * Executes any computations specified on columns
+	 * Executes any computations specified on columns, except those calculated by elasticsearch
 	 */
 	public void executeComputations(){
-		boolean calculationFound = false;
+		List<Column> calculations = new ArrayList<Column>();
 		for(Column column : heading.columns()) 
-			if(column.hasCalculation()){
-				calculationFound = true;
-				break;
+			if(column.hasCalculation() && column.getScript() == null) calculations.add(column);
+		if(calculations.isEmpty()) return;
+		
+		// compile the calculations once and evaluate them on the primitive values within the store
+		CalculationProgram[] programs = new CalculationProgram[calculations.size()];
+		int[] targets = new int[calculations.size()];
+		for(int c=0; c<programs.length; c++){
+			programs[c] = CalculationProgram.compile(calculations.get(c).getCalculation());
+			targets[c] = calculations.get(c).getIndex();
 		}
-		if(!calculationFound) return;
-		for(int i=0; i<rows.size(); i++){
-			for(Column column : heading.columns()){
-				if(column.hasCalculation()) {
-					Number value = column.getCalculation().evaluate(this, i);
-					rows.get(i).set(column.getIndex(), value);
-				}
+		for(int i=0; i<store.size(); i++){
+			for(int c=0; c<programs.length; c++){
+				store.setDouble(i, targets[c], programs[c].evaluate(store, i));
 			}
 		}
 	}
@@ -184,7 +200,7 @@ public class ESResultSet implements ResultSet {
 
 	@Override
 	public boolean next() throws SQLException {
-		if(cursor + 1 < rows.size() && offset + cursor + 1 < total){
+		if(cursor + 1 < store.size() && offset + cursor + 1 < total){
 			cursor ++;
 			return true;
 		}
@@ -196,14 +212,24 @@ public class ESResultSet implements ResultSet {
 
 	@Override
 	public boolean wasNull() throws SQLException {
-		// TODO Auto-generated method stub
-		return false;
+		return wasNull;
 	}
 
 	private Object getForColumn(int columnIdx) throws SQLException{
 		Integer idx = heading.getIndexForColumn(columnIdx);
-		if(idx >= rows.get(cursor).size()) return null;
-		return rows.get(cursor).get(idx);
+		Object value = idx >= store.width() ? null : store.get(cursor, idx);
+		wasNull = value == null;
+		return value;
+	}
+	
+	/**
+	 * Checks if the value for the provided column is NULL (without retrieving it)
+	 * @param idx the index within the store
+	 * @return
+	 */
+	private boolean isNull(int idx){
+		wasNull = store.isNull(cursor, idx);
+		return wasNull;
 	}
 	
 	@Override
@@ -263,45 +289,45 @@ public class ESResultSet implements ResultSet {
 
 	@Override
 	public int getInt(int columnIndex) throws SQLException {
-		Object value = getForColumn(columnIndex);
-		if(value == null) return 0;
+		int idx = heading.getIndexForColumn(columnIndex);
+		if(isNull(idx)) return 0;
 		try{
-			return  ((Number)value).intValue();
+			return (int)store.getLong(cursor, idx);
 		}catch(Exception cce){
-			throw new SQLException("Value in column '"+columnIndex+"' is not of type int but is "+value.getClass());
+			throw new SQLException("Value in column '"+columnIndex+"' is not of type int but is "+store.get(cursor, idx).getClass());
 		}
 	}
 
 	@Override
 	public long getLong(int columnIndex) throws SQLException {
-		Object value = getForColumn(columnIndex);
-		if(value == null) return 0;
+		int idx = heading.getIndexForColumn(columnIndex);
+		if(isNull(idx)) return 0;
 		try{
-			return  ((Number)value).longValue();
+			return store.getLong(cursor, idx);
 		}catch(Exception cce){
-			throw new SQLException("Value in column '"+columnIndex+"' is not of type Long but is "+value.getClass());
+			throw new SQLException("Value in column '"+columnIndex+"' is not of type Long but is "+store.get(cursor, idx).getClass());
 		}
 	}
 
 	@Override
 	public float getFloat(int columnIndex) throws SQLException {
-		Object value = getForColumn(columnIndex);
-		if(value == null) return 0;
+		int idx = heading.getIndexForColumn(columnIndex);
+		if(isNull(idx)) return 0;
 		try{
-			return  ((Number)value).floatValue();
+			return (float)store.getDouble(cursor, idx);
 		}catch(Exception cce){
-			throw new SQLException("Value in column '"+columnIndex+"' is not of type Float but is "+value.getClass());
+			throw new SQLException("Value in column '"+columnIndex+"' is not of type Float but is "+store.get(cursor, idx).getClass());
 		}
 	}
 
 	@Override
 	public double getDouble(int columnIndex) throws SQLException {
-		Object value = getForColumn(columnIndex);
-		if(value == null) return 0;
+		int idx = heading.getIndexForColumn(columnIndex);
+		if(isNull(idx)) return 0;
 		try{
-			return  ((Number)value).doubleValue();
+			return store.getDouble(cursor, idx);
 		}catch(Exception cce){
-			throw new SQLException("Value in column '"+columnIndex+"' is not of type Double but is "+value.getClass());
+			throw new SQLException("Value in column '"+columnIndex+"' is not of type Double but is "+store.get(cursor, idx).getClass());
 		}
 	}
 
@@ -563,7 +589,7 @@ public class ESResultSet implements ResultSet {
 
 	@Override
 	public boolean isFirst() throws SQLException {
-		return cursor == 1 && rows.size() > 0;
+		return cursor == 1 && store.size() > 0;
 	}
 
 	@Override
@@ -589,7 +615,7 @@ public class ESResultSet implements ResultSet {
 
 	@Override
 	public boolean last() throws SQLException {
-		cursor = rows.size() - 1;
+		cursor = store.size() - 1;
 		return true;
 	}
 
@@ -600,7 +626,7 @@ public class ESResultSet implements ResultSet {
 
 	@Override
 	public boolean absolute(int row) throws SQLException {
-		if(row >=0 && row < rows.size()){
+		if(row >=0 && row < store.size()){
 			cursor = row;
 			return true;
 		}
@@ -610,7 +636,7 @@ public class ESResultSet implements ResultSet {
 	@Override
 	public boolean relative(int rows) throws SQLException {
 		int newRow = cursor + rows;
-		if(newRow >=0 && newRow < this.rows.size()){
+		if(newRow >=0 && newRow < this.store.size()){
 			cursor = newRow;
 			return true;
 		}
@@ -0,0 +1,89 @@
+package nl.anchormen.sql4es;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+
+import org.elasticsearch.search.SearchHits;
+
+import nl.anchormen.sql4es.parse.se.PathNode;
+import nl.anchormen.sql4es.parse.se.SearchHitParser;
+
+/**
+ * A forward only {@link ResultSet} which converts {@link SearchHits} into rows one hit at a time instead of
+ * materializing an entire scroll page up front. When the current page is drained the next page is requested
+ * through the {@link ESQueryState} the resultset belongs to. As a result only a single page of raw hits is kept
+ * in memory and the time to the first row does not depend on the fetch size used.
+ * Exploded nested objects are produced on demand as well, at most {@link #BUFFER_SIZE} rows are buffered at a time.
+ * 
+ * Note that calculations referring to other rows (like col[-1]) can only see the rows buffered together, 
+ * which are rows produced by the same hit.
+ *
+ * @author cversloot
+ *
+ */
+public class ESStreamingResultSet extends ESForwardOnlyResultSet {
+
+	private static final int BUFFER_SIZE = 1000;
+	
+	private final SearchHitParser hitParser;
+	private final PathNode index;
+	private final boolean useLateral;
+	private SearchHits hits;
+	private Iterator<List<Object>> hitRows = null;
+	private int hitIndex = 0;
+	private int columnCount = -1;
+
+	public ESStreamingResultSet(ESQueryState req, SearchHits hits, SearchHitParser hitParser, boolean useLateral) throws SQLException {
+		super(req, hits.getTotalHits());
+		this.hits = hits;
+		this.hitParser = hitParser;
+		this.useLateral = useLateral;
+		this.index = req.getPathIndex();
+		// parse the first hit so the heading (and metadata) is complete before the first call to next()
+		fetchFirst();
+	}
+
+	/**
+	 * Fills the row buffer with the remaining rows of the current hit or the rows of the next hit 
+	 * that produces any, fetching the next scroll page when the current one is exhausted.
+	 * @return false if no more hits are available
+	 * @throws SQLException
+	 */
+	@Override
+	protected boolean fetchRows() throws SQLException{
+		while(store.size() == 0){
+			if(hitRows != null && hitRows.hasNext()){
+				while(hitRows.hasNext() && store.size() < BUFFER_SIZE) add(hitRows.next());
+				continue;
+			}
+			if(hits == null) return false;
+			if(hitIndex >= hits.getHits().length){
+				hits = req.nextScrollPage();
+				hitIndex = 0;
+				if(hits == null || hits.getHits().length == 0){
+					hits = null;
+					return false;
+				}
+			}
+			hitRows = hitParser.parse(hits.getAt(hitIndex), getHeading(), useLateral, index);
+			hitIndex++;
+		}
+		if(getHeading().getColumnCount() != columnCount){
+			hitParser.fixVisibility(getHeading(), useLateral);
+			getHeading().buildIndex();
+			columnCount = getHeading().getColumnCount();
+		}
+		executeComputations();
+		return true;
+	}
+
+	@Override
+	public void close() throws SQLException {
+		super.close();
+		this.hits = null;
+		this.hitRows = null;
+	}
+
+}
@@ -84,6 +84,18 @@ public class ESUpdateState {
 		this.statement = statement;
 		this.queryState = new ESQueryState(client, statement);
 	}
+	
+	/**
+	 * Assigns this (pooled) state to the provided statement
+	 * @param statement
+	 * @throws SQLException
+	 */
+	public void setStatement(Statement statement) throws SQLException{
+		this.statement = statement;
+		this.props = statement.getConnection().getClientInfo();
+		this.queryState.setStatement(statement);
+		this.bulkList.clear();
+	}
 
 	/**
 	 * Parses the given name to extract the type and optionally the index in format (index.)type.
@@ -486,6 +498,7 @@ public class ESUpdateState {
 			PutMappingResponse response = client.admin().indices().preparePutMapping(index).setType(type).setSource(json).execute().actionGet();
 			if(!response.isAcknowledged()) throw new SQLException("Table creation failed due to unknown reason");
 		}
+		MappingCache.get(client).invalidate();
 		this.statement.getConnection().getTypeMap(); // trigger a reload of the table&column set for the connection
 		return 0; // default SQL result for a statement that does not manipulate any rows
 	}
@@ -526,6 +539,7 @@ public class ESUpdateState {
 		String insertSql = "INSERT INTO "+createAsSelect.getName().toString()+" "+sql.substring(queryIdx+4);
 		Insert insert = (Insert)parser.createStatement(insertSql);
 		int res = this.execute(insertSql, insert, index);
+		MappingCache.get(client).invalidate();
 		this.statement.getConnection().getTypeMap(); // trigger a reload of the table&column set for the connection
 		return res;
 	}
@@ -562,6 +576,7 @@ public class ESUpdateState {
 			response = client.admin().indices().prepareAliases().addAlias(indices, alias).execute().actionGet();
 		}
 		if(!response.isAcknowledged()) throw new SQLException("Elasticsearch failed to create the specified alias");
+		MappingCache.get(client).invalidate();
 		this.statement.getConnection().getTypeMap(); // trigger a reload of the table&column set for the connection
 		return 0; // the number of altered rows
 	}
@@ -581,6 +596,7 @@ public class ESUpdateState {
 		index = Heading.findOriginal(sql.trim()+";", index, "table\\s+",";");
 		DeleteIndexResponse response = client.admin().indices().prepareDelete(index).execute().actionGet();
 		if(!response.isAcknowledged()) throw new SQLException("Elasticsearch failed to delete the specified index");
+		MappingCache.get(client).invalidate();
 		return 0;
 	}
 
@@ -616,6 +632,7 @@ public class ESUpdateState {
 		}
 		IndicesAliasesResponse response = client.admin().indices().prepareAliases().removeAlias(indices.toArray(new String[indices.size()]), alias).get();
 		if(!response.isAcknowledged()) throw new SQLException("Elasticsearch failed to delete the specified alias");
+		MappingCache.get(client).invalidate();
 		return 0;
 	}
 	
@@ -0,0 +1,160 @@
+package nl.anchormen.sql4es;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+
+import com.carrotsearch.hppc.cursors.ObjectCursor;
+
+/**
+ * Driver wide cache of the mappings of the indices accessed through a {@link Client}. Instead of pulling the entire
+ * cluster state, only the metadata of the indices in scope (an index, alias or all indices) is requested and only
+ * when the scope was not refreshed within the configured interval. Parsed mappings are kept per index and are only
+ * parsed again when the uuid or metadata version of the index changes.
+ * Statements changing mappings or aliases invalidate the cache to force a refresh on the next request.
+ *
+ * @author cversloot
+ *
+ */
+public class MappingCache {
+
+	private static final String ALL = "_all";
+	private static final Map<Client, MappingCache> caches = new IdentityHashMap<Client, MappingCache>();
+
+	private final Client client;
+	private final Map<String, IndexMappings> indices = new HashMap<String, IndexMappings>();
+	private final Map<String, Scope> scopes = new HashMap<String, Scope>();
+
+	private MappingCache(Client client){
+		this.client = client;
+	}
+
+	/**
+	 * Returns the cache for the provided client, all connections sharing the client share the cache
+	 * @param client
+	 * @return
+	 */
+	public static synchronized MappingCache get(Client client){
+		MappingCache cache = caches.get(client);
+		if(cache == null){
+			cache = new MappingCache(client);
+			caches.put(client, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * Removes the cache of the provided client, must be called when the client is closed
+	 * @param client
+	 */
+	public static synchronized void remove(Client client){
+		caches.remove(client);
+	}
+
+	/**
+	 * Returns the mappings of the indices in the provided scope
+	 * @param scope an index or alias name, NULL for all indices
+	 * @param refreshMs the maximum age of the metadata, a scope older than this is refreshed
+	 * @return index -> type -> properties of the type (may be NULL)
+	 * @throws SQLException
+	 */
+	public synchronized Map<String, Map<String, Map<String, Object>>> getMappings(String scope, long refreshMs) throws SQLException{
+		if(scope == null) scope = ALL;
+		Scope cached = scopes.get(scope);
+		long now = System.currentTimeMillis();
+		if(cached == null || now - cached.fetched >= refreshMs) cached = refresh(scope, now);
+		Map<String, Map<String, Map<String, Object>>> result = new HashMap<String, Map<String, Map<String, Object>>>();
+		for(String index : cached.indices) result.put(index, indices.get(index).types);
+		return result;
+	}
+
+	/**
+	 * Forces a refresh of all scopes on their next request. Mappings of indices which did not change are not parsed again.
+	 */
+	public synchronized void invalidate(){
+		scopes.clear();
+	}
+
+	/**
+	 * Fetches the metadata of the indices in the scope and parses the mappings of indices that are new or changed
+	 * @param scope
+	 * @param now
+	 * @return
+	 * @throws SQLException
+	 */
+	private Scope refresh(String scope, long now) throws SQLException{
+		ImmutableOpenMap<String, IndexMetaData> metadata;
+		try{
+			metadata = client.admin().cluster().prepareState().clear().setMetaData(true).setIndices(scope)
+					.get().getState().getMetaData().getIndices();
+		}catch(Exception e){
+			throw new SQLException("Unable to retrieve metadata for '"+scope+"'", e);
+		}
+		List<String> names = new ArrayList<String>(metadata.size());
+		for(ObjectCursor<IndexMetaData> cursor : metadata.values()){
+			IndexMetaData imd = cursor.value;
+			IndexMappings mappings = indices.get(imd.getIndex());
+			if(mappings == null || !mappings.isVersion(imd)){
+				indices.put(imd.getIndex(), new IndexMappings(imd));
+			}
+			names.add(imd.getIndex());
+		}
+		Scope result = new Scope(names, now);
+		scopes.put(scope, result);
+
+		// forget indices no longer part of any scope (i.e. deleted ones)
+		Set<String> used = new HashSet<String>();
+		for(Scope s : scopes.values()) used.addAll(s.indices);
+		indices.keySet().retainAll(used);
+		return result;
+	}
+
+	private static class Scope {
+
+		private final List<String> indices;
+		private final long fetched;
+
+		private Scope(List<String> indices, long fetched){
+			this.indices = indices;
+			this.fetched = fetched;
+		}
+	}
+
+	private static class IndexMappings {
+
+		private final String uuid;
+		private final long version;
+		private final Map<String, Map<String, Object>> types;
+
+		@SuppressWarnings("unchecked")
+		private IndexMappings(IndexMetaData imd) throws SQLException{
+			this.uuid = imd.getIndexUUID();
+			this.version = imd.getVersion();
+			Map<String, Map<String, Object>> types = new HashMap<String, Map<String, Object>>();
+			for(ObjectCursor<MappingMetaData> cursor : imd.getMappings().values()){
+				try {
+					types.put(cursor.value.type(), (Map<String, Object>)cursor.value.getSourceAsMap().get("properties"));
+				} catch (IOException e) {
+					throw new SQLException("Unable to parse mapping of "+imd.getIndex()+"."+cursor.value.type(), e);
+				}
+			}
+			this.types = Collections.unmodifiableMap(types);
+		}
+
+		private boolean isVersion(IndexMetaData imd){
+			return version == imd.getVersion() && uuid.equals(imd.getIndexUUID());
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package nl.anchormen.sql4es;
+
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Executes a scroll request once for every shard (using preference _shards:N) and scrolls these concurrently
+ * on a bounded number of threads. The pages of all shards are merged into a single stream of pages in the
+ * order they arrive, this is only correct for queries which do not specify an ordering.
+ * The number of pages waiting to be consumed is bounded so memory use does not depend on the number of shards.
+ *
+ * @author cversloot
+ *
+ */
+public class ParallelScroll {
+
+	private final Client client;
+	private final TimeValue keepAlive;
+	private final ExecutorService executor;
+	private final BlockingQueue<Object> pages;
+	private final AtomicInteger running;
+	private SearchResponse lastPage = null;
+	private volatile boolean closed = false;
+
+	/**
+	 * Starts scrolling the provided request on all shards
+	 * @param client
+	 * @param request a scroll request without ordering
+	 * @param shards the number of shards (of the largest index) to scroll
+	 * @param threads maximum number of shards scrolled concurrently
+	 * @param keepAlive
+	 */
+	public ParallelScroll(Client client, SearchRequest request, int shards, int threads, TimeValue keepAlive){
+		this.client = client;
+		this.keepAlive = keepAlive;
+		this.running = new AtomicInteger(shards);
+		this.pages = new ArrayBlockingQueue<Object>(Math.max(2, threads));
+		this.executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, shards)), new ThreadFactory(){
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "sql4es-scroll-"+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		for(int shard = 0; shard < shards; shard++){
+			final SearchRequest shardRequest = new SearchRequest(request, request).preference("_shards:"+shard);
+			executor.execute(new Runnable(){
+				@Override
+				public void run() {
+					scrollShard(shardRequest);
+				}
+			});
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * Scrolls a single shard until it has no more results. Non empty pages are put in the queue, the
+	 * empty page of the last shard to finish is put on the queue to signal the end of the stream. A failure
+	 * is put on the queue as well so the consumer does not wait for pages which will never arrive.
+	 * @param request
+	 */
+	private void scrollShard(SearchRequest request){
+		String scrollId = null;
+		SearchResponse response = null;
+		Throwable failure = null;
+		try{
+			response = client.search(request).actionGet();
+			scrollId = response.getScrollId();
+			while(!closed && response.getHits().getHits().length > 0){
+				pages.put(response);
+				response = client.prepareSearchScroll(scrollId).setScroll(keepAlive).execute().actionGet();
+				if(response.getScrollId() != null) scrollId = response.getScrollId();
+			}
+		}catch(InterruptedException ie){
+			Thread.currentThread().interrupt();
+		}catch(Throwable t){
+			failure = t;
+		}finally{
+			if(scrollId != null) client.prepareClearScroll().addScrollId(scrollId).execute();
+			boolean last = running.decrementAndGet() == 0;
+			try{
+				if(failure != null && !closed) pages.put(failure);
+				else if(last && !closed && response != null) pages.put(response);
+			}catch(InterruptedException ie){
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Returns the next page received from any of the shards, blocking until one is available. Once all
+	 * shards have been scrolled an empty page is returned on every call.
+	 * @return
+	 * @throws SQLException
+	 */
+	public SearchResponse next() throws SQLException {
+		if(lastPage != null) return lastPage;
+		try {
+			Object page = pages.take();
+			if(page instanceof Throwable){
+				close();
+				throw new SQLException("Unable to scroll shard due to: "+((Throwable)page).getMessage(), (Throwable)page);
+			}
+			SearchResponse response = (SearchResponse)page;
+			if(response.getHits().getHits().length == 0) lastPage = response;
+			return response;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for next page", e);
+		}
+	}
+
+	/**
+	 * Stops all shard scrolls (their scrolls are cleared by the threads executing them)
+	 */
+	public void close(){
+		this.closed = true;
+		executor.shutdownNow();
+		pages.clear();
+	}
+}
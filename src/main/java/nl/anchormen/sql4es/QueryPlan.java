@@ -0,0 +1,97 @@
+package nl.anchormen.sql4es;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.search.Scroll;
+
+import nl.anchormen.sql4es.model.Column;
+import nl.anchormen.sql4es.model.Heading;
+import nl.anchormen.sql4es.model.OrderBy;
+import nl.anchormen.sql4es.model.expression.IComparison;
+
+/**
+ * The result of interpreting a SELECT statement which can be reused to execute the same statement again without
+ * parsing and planning it. It holds the serialized source of the request and a prototype of the heading (and having)
+ * which is copied for every use because they are modified while results are parsed.
+ *
+ * @author cversloot
+ *
+ */
+public class QueryPlan {
+
+	private final BytesReference source;
+	private final String[] types;
+	private final Scroll scroll;
+	private final Boolean requestCache;
+	private final Heading heading;
+	private final IComparison having;
+	private final List<OrderBy> orderings;
+	private final int limit;
+	private final boolean countOnly;
+
+	/**
+	 * Creates a plan from a built request, the heading and having are copied so they can still be used by the caller
+	 * @param request
+	 * @param heading
+	 * @param having
+	 * @param orderings
+	 * @param limit
+	 * @param countOnly
+	 */
+	public QueryPlan(SearchRequestBuilder request, Heading heading, IComparison having, List<OrderBy> orderings,
+			int limit, boolean countOnly){
+		SearchRequest searchRequest = request.request();
+		this.source = searchRequest.source();
+		this.types = searchRequest.types();
+		this.scroll = searchRequest.scroll();
+		this.requestCache = searchRequest.requestCache();
+		Map<Column, Column> columns = new IdentityHashMap<Column, Column>();
+		this.heading = heading.copy(columns);
+		this.having = having == null ? null : having.copy(columns);
+		this.orderings = new ArrayList<OrderBy>(orderings);
+		this.limit = limit;
+		this.countOnly = countOnly;
+	}
+
+	/**
+	 * Builds a new request for the provided indices with the source and settings of the planned one
+	 * @param client
+	 * @param indices
+	 * @return
+	 */
+	public SearchRequestBuilder buildRequest(Client client, String... indices){
+		SearchRequestBuilder request = client.prepareSearch(indices).setTypes(types).setSource(source);
+		if(scroll != null) request.setScroll(scroll);
+		if(requestCache != null) request.setRequestCache(requestCache);
+		return request;
+	}
+
+	/**
+	 * Copies the heading and having of this plan so they can be used for a single execution
+	 * @return the copied heading and having (which may be NULL)
+	 */
+	public Object[] copy(){
+		Map<Column, Column> columns = new IdentityHashMap<Column, Column>();
+		Heading heading = this.heading.copy(columns);
+		return new Object[]{heading, having == null ? null : having.copy(columns)};
+	}
+
+	public List<OrderBy> getOrderings() {
+		return new ArrayList<OrderBy>(orderings);
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public boolean isCountOnly() {
+		return countOnly;
+	}
+}
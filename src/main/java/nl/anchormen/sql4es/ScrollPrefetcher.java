@@ -0,0 +1,110 @@
+package nl.anchormen.sql4es;
+
+import java.sql.SQLException;
+import java.util.LinkedList;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Requests scroll pages asynchronously ahead of the client consuming them. Up to <i>depth</i> pages
+ * are buffered, while the next page is being fetched the client can convert the ones already received.
+ * Pages are always requested one after the other because each scroll request needs the scroll id of the
+ * previous response.
+ *
+ * @author cversloot
+ *
+ */
+public class ScrollPrefetcher implements ActionListener<SearchResponse>{
+
+	private final Client client;
+	private final TimeValue keepAlive;
+	private final int depth;
+	private final LinkedList<SearchResponse> buffer = new LinkedList<SearchResponse>();
+	private String scrollId;
+	private SearchResponse lastPage = null;
+	private Throwable failure = null;
+	private boolean inFlight = false;
+	private boolean closed = false;
+
+	/**
+	 * Creates a prefetcher for the provided scroll and immediately requests the first page(s)
+	 * @param client
+	 * @param scrollId the scroll id of the response already received
+	 * @param keepAlive
+	 * @param depth the maximum number of pages to buffer
+	 */
+	public ScrollPrefetcher(Client client, String scrollId, TimeValue keepAlive, int depth){
+		this.client = client;
+		this.scrollId = scrollId;
+		this.keepAlive = keepAlive;
+		this.depth = Math.max(1, depth);
+		fill();
+	}
+
+	/**
+	 * Issues a new scroll request if there is none in flight and the buffer is not full
+	 */
+	private synchronized void fill(){
+		if(inFlight || closed || failure != null || lastPage != null || buffer.size() >= depth) return;
+		inFlight = true;
+		client.prepareSearchScroll(scrollId).setScroll(keepAlive).execute(this);
+	}
+
+	@Override
+	public synchronized void onResponse(SearchResponse response) {
+		inFlight = false;
+		if(response.getScrollId() != null) scrollId = response.getScrollId();
+		if(!closed) buffer.add(response);
+		if(response.getHits().getHits().length == 0) lastPage = response; // end of the scroll
+		notifyAll();
+		fill();
+	}
+
+	@Override
+	public synchronized void onFailure(Throwable t) {
+		inFlight = false;
+		failure = t;
+		notifyAll();
+	}
+
+	/**
+	 * Returns the next page, blocking until it has been received. Once the end of the scroll has been
+	 * reached the (empty) last page is returned on every call.
+	 * @return
+	 * @throws SQLException
+	 */
+	public synchronized SearchResponse next() throws SQLException{
+		while(buffer.isEmpty()){
+			if(failure != null) throw new SQLException("Unable to fetch next page due to: "+failure.getMessage(), failure);
+			if(lastPage != null || closed) return lastPage;
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for next page", e);
+			}
+		}
+		SearchResponse response = buffer.removeFirst();
+		fill();
+		return response;
+	}
+
+	/**
+	 * @return the most recent scroll id received
+	 */
+	public synchronized String getScrollId(){
+		return scrollId;
+	}
+
+	/**
+	 * Stops prefetching and releases any buffered pages
+	 */
+	public synchronized void close(){
+		this.closed = true;
+		buffer.clear();
+		notifyAll();
+	}
+}
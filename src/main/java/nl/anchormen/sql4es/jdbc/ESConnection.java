@@ -1,7 +1,5 @@
 package nl.anchormen.sql4es.jdbc;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.sql.Array;
 import java.sql.Blob;
 import java.sql.CallableStatement;
@@ -23,22 +21,28 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.concurrent.Executor;
 
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
 import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsRequest;
 import org.elasticsearch.client.Client;
-import org.elasticsearch.client.transport.TransportClient;
-import org.elasticsearch.common.settings.Settings;
-import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.unit.TimeValue;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import nl.anchormen.sql4es.ESDatabaseMetaData;
+import nl.anchormen.sql4es.ESQueryState;
+import nl.anchormen.sql4es.ESUpdateState;
+import nl.anchormen.sql4es.MappingCache;
 import nl.anchormen.sql4es.model.Heading;
 import nl.anchormen.sql4es.model.Utils;
 
+import com.facebook.presto.sql.parser.SqlParser;
+
 /**
  * A {@link Connection} implementation effectively wrapping an Elasticsearch {@link Client}.
  * 
@@ -60,6 +64,12 @@ public class ESConnection implements Connection{
 	private boolean autoCommit = false;
 	private boolean readOnly = true;
 	private List<ESStatement> statements = new ArrayList<ESStatement>();
+	private List<StatementStates> idleStates = new ArrayList<StatementStates>();
+	private final int statementPoolSize;
+	private final String defaultIndex;
+	private final Properties defaultProps;
+	private Connection handle = null;
+	private final StatementCache statementCache;
 
 	/**
 	 * Builds the es {@link Client} using the provided parameters. 
@@ -74,49 +84,39 @@ public class ESConnection implements Connection{
 		this.port = port;
 		this.host = host;
 		this.props = props;
+		this.defaultIndex = index;
+		this.defaultProps = new Properties();
+		this.defaultProps.putAll(props);
+		this.statementPoolSize = Utils.getIntProp(props, Utils.PROP_STATEMENT_POOL_SIZE, 10);
+		this.statementCache = new StatementCache(new SqlParser(), Utils.getIntProp(props, Utils.PROP_STATEMENT_CACHE_SIZE, 500), 
+				Utils.getIntProp(props, Utils.PROP_STATEMENT_CACHE_TTL_SEC, 3600)*1000L);
 		this.client = buildClient();
 		try{
 			this.getTypeMap(); // loads types into properties
 		}catch(Exception e){
+			TransportClientPool.release(client);
 			throw new SQLException("Unable to connect to specified elasticsearch host(s)", e);
 		}
 	}
 	
 	/**
-	 * Builds the Elasticsearch client using the properties this connection was 
-	 * instantiated with
+	 * Acquires the (shared) Elasticsearch client for the host and properties this connection was 
+	 * instantiated with and checks if the index exists
 	 * @return
 	 * @throws SQLException
 	 */
 	private Client buildClient() throws SQLException {
-		 try {
-			Settings.Builder settingsBuilder = Settings.settingsBuilder();
-			for(Object key : this.props.keySet()){
-				settingsBuilder.put(key, this.props.get(key));
-			}
-			Settings settings = settingsBuilder.build();
-			TransportClient client = TransportClient.builder().settings(settings).build()
-				.addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName(host), port));
-			
-			
-			// add additional hosts if set in URL query part
-			if(this.props.containsKey("es.hosts"))
-				for(String hostPort : this.props.getProperty("es.hosts").split(",")){
-					String newHost = hostPort.split(":")[0].trim();
-					int newPort = (hostPort.split(":").length > 1 ? Integer.parseInt(hostPort.split(":")[1]) : Utils.PORT);
-					client.addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName(newHost), newPort));
-					logger.info("Adding additional ES host: "+hostPort);
-			}
-			
+		Client client = TransportClientPool.acquire(host, port, props);
+		try {
 			// check if index exists
 			if(index != null){
 				boolean indexExists = client.admin().indices().exists(new IndicesExistsRequest(index)).actionGet().isExists();
 				if(!indexExists) throw new SQLException("Index or Alias '"+index+"' does not exist");
 			}
 			return client;
-		} catch (UnknownHostException e) {
-			throw new SQLException ("Unable to connect to "+host, e);
 		} catch (Throwable t){
+			TransportClientPool.release(client);
+			if(t instanceof SQLException) throw (SQLException)t;
 			throw new SQLException("Unable to connect to database", t);
 		}
 	}
@@ -125,22 +125,92 @@ public class ESConnection implements Connection{
 		return this.client;
 	}
 	
+	/**
+	 * @return the cache of parsed sql statements shared by all statements of this connection
+	 */
+	public StatementCache getStatementCache(){
+		return this.statementCache;
+	}
+	
 	@Override
 	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if(iface.isInstance(this)) return iface.cast(this);
 		throw new SQLFeatureNotSupportedException(Utils.getLoggingInfo());
 	}
 
 	@Override
 	public boolean isWrapperFor(Class<?> iface) throws SQLException {
-		 throw new SQLFeatureNotSupportedException(Utils.getLoggingInfo());
+		return iface.isInstance(this);
 	}
 
+	/**
+	 * Creates a new statement using the query and update states of a closed statement if available. These 
+	 * states are kept for reuse (up to statement.pool.size) so they do not have to be rebuilt for every 
+	 * statement executed. Statements themselves are never handed out twice.
+	 * @param sql the sql of a prepared statement or NULL for a regular statement
+	 * @return
+	 * @throws SQLException
+	 */
+	private ESStatement takeStatement(String sql) throws SQLException{
+		StatementStates states = idleStates.isEmpty() ? new StatementStates(null, null) : idleStates.remove(idleStates.size()-1);
+		ESStatement st = sql == null ? new ESStatement(this, states.queryState, states.updateState) 
+				: new ESPreparedStatement(this, sql, states.queryState, states.updateState);
+		statements.add(st);
+		return st;
+	}
+	
+	/**
+	 * Called by statements of this connection when they are closed
+	 * @param st
+	 */
+	void statementClosed(ESStatement st) throws SQLException{
+		if(!statements.remove(st)) return;
+		if(st.isPoolable() && idleStates.size() < statementPoolSize) idleStates.add(new StatementStates(st.queryState, st.updateState));
+	}
+	
+	/**
+	 * Prepares this connection to be handed out again by the {@link ESDataSource} it belongs to. All 
+	 * statements still open are closed, the client info properties are restored and the connection 
+	 * switches back to the index it was created for (which may be none at all). 
+	 * @throws SQLException
+	 */
+	void reset() throws SQLException{
+		for(ESStatement st : new ArrayList<ESStatement>(statements)) st.close();
+		Object tableColumnInfo = props.get(Utils.PROP_TABLE_COLUMN_MAP);
+		this.props = new Properties();
+		this.props.putAll(defaultProps);
+		statementCache.clearPlans();
+		if(!Objects.equals(defaultIndex, index) || tableColumnInfo == null){
+			// the index was validated when the connection was created
+			this.index = defaultIndex;
+			getTypeMap();
+		}else{
+			this.props.put(Utils.PROP_TABLE_COLUMN_MAP, tableColumnInfo);
+		}
+	}
+	
+	/**
+	 * Sets the connection handed out by the {@link ESDataSource} wrapping this connection, statements
+	 * return it as their connection
+	 * @param handle the pooled connection or NULL when the connection is returned to the pool
+	 */
+	void setHandle(Connection handle){
+		this.handle = handle;
+	}
+	
+	/**
+	 * @return the pooled connection wrapping this connection or the connection itself if it is not pooled
+	 */
+	Connection getHandle(){
+		return handle == null ? this : handle;
+	}
+	
 	@Override
 	public Statement createStatement() throws SQLException {
 		if(this.client == null){
 			throw new SQLException("Unable to connect on specified schema '"+this.index+"'");
 		}
-		return new ESStatement(this);
+		return takeStatement(null);
 	}
 
 	@Override
@@ -148,7 +218,7 @@ public class ESConnection implements Connection{
 		if(this.client == null){
 			throw new SQLException("Unable to connect on specified schema '"+this.index+"'");
 		}
-		return new ESPreparedStatement(this, sql);
+		return (PreparedStatement)takeStatement(sql);
 	}
 
 	@Override
@@ -162,7 +232,7 @@ public class ESConnection implements Connection{
 		if(this.client == null){
 			throw new SQLException("Unable to connect on specified schema '"+this.index+"'");
 		}
-		return new ESStatement(this);
+		return takeStatement(null);
 	}
 
 	@Override
@@ -193,9 +263,11 @@ public class ESConnection implements Connection{
 	@Override
 	public void close() throws SQLException {
 		if(isClosed()) return;
-		for(ESStatement st : this.statements) st.close();
+		List<ESStatement> open = new ArrayList<ESStatement>(statements);
 		statements.clear();
-		client.close();
+		idleStates.clear();
+		for(ESStatement st : open) st.close();
+		TransportClientPool.release(client);
 		this.active = false;
 	}
 
@@ -256,7 +328,7 @@ public class ESConnection implements Connection{
 		if(this.client == null){
 			throw new SQLException("Unable to connect on specified schema '"+this.index+"'");
 		}
-		return new ESPreparedStatement(this, sql);
+		return (PreparedStatement)takeStatement(sql);
 	}
 
 	@Override
@@ -264,9 +336,19 @@ public class ESConnection implements Connection{
 		 throw new SQLFeatureNotSupportedException(Utils.getLoggingInfo());
 	}
 
+	/**
+	 * Forces the mappings to be fetched from the cluster again and reloads the types of the active index
+	 * @return
+	 * @throws SQLException
+	 */
+	public Map<String, Class<?>> refreshTypeMap() throws SQLException {
+		MappingCache.get(client).invalidate();
+		return getTypeMap();
+	}
+	
 	@Override
 	public Map<String, Class<?>> getTypeMap() throws SQLException {
-		ResultSet rs = getMetaData().getColumns(null, null, null, null);
+		ResultSet rs = getMetaData().getColumns(null, index, null, null);
 		Map<String, Map<String, Integer>> tableColumnInfo = new HashMap<String, Map<String, Integer>>();;
 		while(rs.next()){
 			String table = rs.getString(3);
@@ -276,6 +358,7 @@ public class ESConnection implements Connection{
 			tableColumnInfo.get(table).put(col, type);
 		}
 		this.props.put(Utils.PROP_TABLE_COLUMN_MAP, tableColumnInfo);
+		statementCache.clearPlans(); // plans refer to the types of the previous mappings
 		
 		Map<String, Class<?>> result = new HashMap<String, Class<?>>();
 		for(String type : tableColumnInfo.keySet()){
@@ -328,9 +411,7 @@ public class ESConnection implements Connection{
 			throw new SQLException("Unable to connect on specified schema '"+this.index+"'");
 		}
 		if(isClosed()) throw new SQLException("Connection closed");
-		ESStatement st = new ESStatement(this);
-		statements.add(st);
-		return st;
+		return takeStatement(null);
 	}
 
 	@Override
@@ -342,9 +423,7 @@ public class ESConnection implements Connection{
 		}
 		if(isClosed()) throw new SQLException("Connection closed");
 		
-		ESPreparedStatement st = new ESPreparedStatement(this, sql);
-		statements.add(st);
-		return st;
+		return (PreparedStatement)takeStatement(sql);
 	}
 
 	@Override
@@ -361,9 +440,7 @@ public class ESConnection implements Connection{
 		}
 		if(isClosed()) throw new SQLException("Connection closed");
 		
-		ESPreparedStatement st = new ESPreparedStatement(this, sql);
-		statements.add(st);
-		return st;
+		return (PreparedStatement)takeStatement(sql);
 	}
 
 	@Override
@@ -374,9 +451,7 @@ public class ESConnection implements Connection{
 		}
 		if(isClosed()) throw new SQLException("Connection closed");
 		
-		ESPreparedStatement st = new ESPreparedStatement(this, sql);
-		statements.add(st);
-		return st;
+		return (PreparedStatement)takeStatement(sql);
 	}
 
 	@Override
@@ -387,9 +462,7 @@ public class ESConnection implements Connection{
 		}
 		if(isClosed()) throw new SQLException("Connection closed");
 		
-		ESPreparedStatement st = new ESPreparedStatement(this, sql);
-		statements.add(st);
-		return st;
+		return (PreparedStatement)takeStatement(sql);
 	}
 
 	@Override
@@ -414,17 +487,29 @@ public class ESConnection implements Connection{
 
 	@Override
 	public boolean isValid(int timeout) throws SQLException {
-		return active;
+		if(!active) return false;
+		try{
+			// cheap check asking the node we are connected to for its view on the cluster
+			ListenableActionFuture<ClusterHealthResponse> health = client.admin().cluster().prepareHealth().setLocal(true).execute();
+			if(timeout > 0) health.actionGet(TimeValue.timeValueSeconds(timeout));
+			else health.actionGet();
+			return true;
+		}catch(Exception e){
+			logger.debug("Connection is not valid: "+e.getMessage());
+			return false;
+		}
 	}
 
 	@Override
 	public void setClientInfo(String name, String value) throws SQLClientInfoException {
 		props.setProperty(name, value);
+		statementCache.clearPlans();
 	}
 
 	@Override
 	public void setClientInfo(Properties properties) throws SQLClientInfoException {
 		this.props = properties;
+		statementCache.clearPlans();
 	}
 
 	@Override
@@ -474,4 +559,17 @@ public class ESConnection implements Connection{
 		return timeout;
 	}
 
+	/**
+	 * The query and update states of a closed statement kept for reuse
+	 */
+	private static class StatementStates {
+		
+		private final ESQueryState queryState;
+		private final ESUpdateState updateState;
+		
+		private StatementStates(ESQueryState queryState, ESUpdateState updateState){
+			this.queryState = queryState;
+			this.updateState = updateState;
+		}
+	}
 }
@@ -0,0 +1,292 @@
+package nl.anchormen.sql4es.jdbc;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.LinkedList;
+import java.util.Properties;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.anchormen.sql4es.model.Utils;
+
+/**
+ * A pooling {@link DataSource} handing out {@link ESConnection}s for the configured url. Connections closed
+ * by the application are reset and kept for reuse (up to maxIdle) instead of being closed, including the
+ * statements they created. The first request for a connection opens minIdle connections up front. Idle
+ * connections are validated with a cheap cluster health request before they are handed out again.
+ * The username and password are not used as the driver does not support authentication.
+ *
+ * @author cversloot
+ *
+ */
+public class ESDataSource implements DataSource {
+
+	private static final Logger logger = LoggerFactory.getLogger(ESDataSource.class);
+
+	private String url;
+	private Properties props = new Properties();
+	private int minIdle = 0;
+	private int maxIdle = 8;
+	private boolean testOnBorrow = true;
+	private int validationTimeoutSec = 5;
+	private int loginTimeout = 0;
+	private PrintWriter logWriter;
+
+	private final LinkedList<ESConnection> idle = new LinkedList<ESConnection>();
+	private boolean initialized = false;
+	private boolean closed = false;
+
+	public ESDataSource(){}
+
+	public ESDataSource(String url){
+		this.url = url;
+	}
+
+	public ESDataSource(String url, Properties props){
+		this.url = url;
+		this.props = props;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		init();
+		ESConnection connection = borrow();
+		Connection handle = (Connection)Proxy.newProxyInstance(ESDataSource.class.getClassLoader(),
+				new Class<?>[]{Connection.class}, new PooledConnection(connection));
+		connection.setHandle(handle);
+		return handle;
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		return getConnection();
+	}
+
+	/**
+	 * Opens connections until minIdle connections are available
+	 * @throws SQLException
+	 */
+	private void init() throws SQLException{
+		synchronized (idle) {
+			if(closed) throw new SQLException("DataSource is closed");
+			if(initialized) return;
+			initialized = true;
+		}
+		for(int i=0; i<minIdle; i++){
+			ESConnection connection = connect();
+			synchronized (idle) {
+				idle.add(connection);
+			}
+		}
+	}
+
+	/**
+	 * Takes the most recently used idle connection which is still valid or opens a new one
+	 * @return
+	 * @throws SQLException
+	 */
+	private ESConnection borrow() throws SQLException{
+		while(true){
+			ESConnection connection;
+			synchronized (idle) {
+				connection = idle.pollLast();
+			}
+			if(connection == null) return connect();
+			if(!testOnBorrow || connection.isValid(validationTimeoutSec)) return connection;
+			logger.info("Closing invalid pooled connection");
+			closeQuietly(connection);
+		}
+	}
+
+	private ESConnection connect() throws SQLException{
+		if(url == null) throw new SQLException("No url set for DataSource");
+		return (ESConnection)new ESDriver().connect(url, props);
+	}
+
+	/**
+	 * Returns the connection to the pool or closes it if enough connections are idle
+	 * @param connection
+	 */
+	private void release(ESConnection connection){
+		connection.setHandle(null);
+		try{
+			connection.reset();
+		}catch(SQLException e){
+			logger.warn("Unable to reset pooled connection, closing it", e);
+			closeQuietly(connection);
+			return;
+		}
+		synchronized (idle) {
+			if(!closed && idle.size() < maxIdle){
+				idle.add(connection);
+				return;
+			}
+		}
+		closeQuietly(connection);
+	}
+
+	private void closeQuietly(ESConnection connection){
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			logger.warn("Unable to close pooled connection", e);
+		}
+	}
+
+	/**
+	 * Closes all idle connections. Connections in use are closed when they are returned to the pool.
+	 */
+	public void close(){
+		LinkedList<ESConnection> toClose;
+		synchronized (idle) {
+			closed = true;
+			toClose = new LinkedList<ESConnection>(idle);
+			idle.clear();
+		}
+		for(ESConnection connection : toClose) closeQuietly(connection);
+	}
+
+	/**
+	 * @return the number of idle connections
+	 */
+	public int getIdleCount(){
+		synchronized (idle) {
+			return idle.size();
+		}
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public void setUrl(String url) {
+		this.url = url;
+	}
+
+	public Properties getProperties() {
+		return props;
+	}
+
+	public void setProperties(Properties props) {
+		this.props = props;
+	}
+
+	public void setProperty(String key, String value){
+		this.props.setProperty(key, value);
+	}
+
+	public int getMinIdle() {
+		return minIdle;
+	}
+
+	public void setMinIdle(int minIdle) {
+		this.minIdle = minIdle;
+	}
+
+	public int getMaxIdle() {
+		return maxIdle;
+	}
+
+	public void setMaxIdle(int maxIdle) {
+		this.maxIdle = maxIdle;
+	}
+
+	public boolean isTestOnBorrow() {
+		return testOnBorrow;
+	}
+
+	public void setTestOnBorrow(boolean testOnBorrow) {
+		this.testOnBorrow = testOnBorrow;
+	}
+
+	public int getValidationTimeoutSec() {
+		return validationTimeoutSec;
+	}
+
+	public void setValidationTimeoutSec(int validationTimeoutSec) {
+		this.validationTimeoutSec = validationTimeoutSec;
+	}
+
+	@Override
+	public PrintWriter getLogWriter() throws SQLException {
+		return logWriter;
+	}
+
+	@Override
+	public void setLogWriter(PrintWriter out) throws SQLException {
+		this.logWriter = out;
+	}
+
+	@Override
+	public void setLoginTimeout(int seconds) throws SQLException {
+		this.loginTimeout = seconds;
+	}
+
+	@Override
+	public int getLoginTimeout() throws SQLException {
+		return loginTimeout;
+	}
+
+	@Override
+	public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException(Utils.getLoggingInfo());
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if(iface.isInstance(this)) return iface.cast(this);
+		throw new SQLException("DataSource does not wrap "+iface.getName());
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return iface.isInstance(this);
+	}
+
+	/**
+	 * The connection handed out to the application. Closing it returns the underlying connection to
+	 * the pool after which the handle can no longer be used.
+	 */
+	private class PooledConnection implements InvocationHandler {
+
+		private ESConnection connection;
+
+		private PooledConnection(ESConnection connection){
+			this.connection = connection;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if(name.equals("close")){
+				ESConnection toRelease = connection;
+				connection = null;
+				if(toRelease != null) release(toRelease);
+				return null;
+			}else if(name.equals("isClosed")){
+				return connection == null || connection.isClosed();
+			}else if(name.equals("equals")){
+				return proxy == args[0];
+			}else if(name.equals("hashCode")){
+				return System.identityHashCode(proxy);
+			}else if(name.equals("toString")){
+				return "Pooled "+connection;
+			}
+			if(connection == null) throw new SQLException("Connection closed");
+			try{
+				return method.invoke(connection, args);
+			}catch(InvocationTargetException e){
+				throw e.getTargetException();
+			}
+		}
+	}
+}
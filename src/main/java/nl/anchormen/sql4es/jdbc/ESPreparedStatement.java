@@ -24,6 +24,8 @@ import java.text.SimpleDateFormat;
 import java.util.Calendar;
 
 import nl.anchormen.sql4es.ESParameterMetaData;
+import nl.anchormen.sql4es.ESQueryState;
+import nl.anchormen.sql4es.ESUpdateState;
 import nl.anchormen.sql4es.model.Utils;
 
 public class ESPreparedStatement extends ESStatement implements PreparedStatement{
@@ -32,7 +34,11 @@ public class ESPreparedStatement extends ESStatement implements PreparedStatemen
 	private SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
 	
 	public ESPreparedStatement(ESConnection connection, String sql) throws SQLException{
-		super(connection);
+		this(connection, sql, null, null);
+	}
+	
+	ESPreparedStatement(ESConnection connection, String sql, ESQueryState queryState, ESUpdateState updateState) throws SQLException{
+		super(connection, queryState, updateState);
 		sql = sql.trim();
 
 		String[] parts = (sql+";").split("\\?");
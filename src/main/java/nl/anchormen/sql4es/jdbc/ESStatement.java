@@ -7,6 +7,10 @@ import java.sql.SQLFeatureNotSupportedException;
 import java.sql.SQLWarning;
 import java.sql.Statement;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
 
 import com.facebook.presto.sql.parser.SqlParser;
 import com.facebook.presto.sql.tree.CreateTable;
@@ -20,6 +24,7 @@ import com.facebook.presto.sql.tree.Insert;
 import com.facebook.presto.sql.tree.Query;
 import com.facebook.presto.sql.tree.Use;
 
+import nl.anchormen.sql4es.ESMultiQueryState;
 import nl.anchormen.sql4es.ESQueryState;
 import nl.anchormen.sql4es.ESResultSet;
 import nl.anchormen.sql4es.ESUpdateState;
@@ -35,33 +40,54 @@ public class ESStatement implements Statement {
 	protected int queryTimeoutSec = 10;
 	protected boolean poolable = true;
 	protected boolean closeOnCompletion = false;
-	protected ResultSet result;
+	protected boolean closed = false;
+	protected volatile ResultSet result;
+	private long execution = 0; // identifies the last query (or page) requested, guarded by this
 
 	protected ESQueryState queryState;
 	protected ESUpdateState updateState;
+	protected ESMultiQueryState multiQueryState;
 	
 	public ESStatement(ESConnection connection) throws SQLException{
+		this(connection, null, null);
+	}
+	
+	/**
+	 * Creates a statement using the (pooled) query and update states of a statement closed before
+	 * @param connection
+	 * @param queryState NULL to create a new state
+	 * @param updateState NULL to create a new state
+	 * @throws SQLException
+	 */
+	ESStatement(ESConnection connection, ESQueryState queryState, ESUpdateState updateState) throws SQLException{
 		this.connection = connection;
-		this.queryState = new ESQueryState(connection.getClient(), this);
-		this.updateState = new ESUpdateState(connection.getClient(), this);
+		if(queryState == null) queryState = new ESQueryState(connection.getClient(), this);
+		else queryState.setStatement(this);
+		if(updateState == null) updateState = new ESUpdateState(connection.getClient(), this);
+		else updateState.setStatement(this);
+		this.queryState = queryState;
+		this.updateState = updateState;
 	}
 
 	@Override
 	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if(iface.isInstance(this)) return iface.cast(this);
 		throw new SQLFeatureNotSupportedException();
 	}
 
 	@Override
 	public boolean isWrapperFor(Class<?> iface) throws SQLException {
-		throw new SQLFeatureNotSupportedException();
+		return iface.isInstance(this);
 	}
 
 	@Override
 	public ResultSet executeQuery(String sql) throws SQLException {
+		checkOpen();
 		//System.out.println(sql);
 		if(connection.getSchema() == null) throw new SQLException("No active index set for this driver. Pleas specify an active index or alias by executing 'USE <index/alias>' first");
 		sql = sql.replaceAll("\r", " ").replaceAll("\n", " ");
-		com.facebook.presto.sql.tree.Statement statement = parser.createStatement(sql);
+		com.facebook.presto.sql.tree.Statement statement = connection.getStatementCache().get(sql);
+		nextExecution();
 		if(statement instanceof Query){
 			if(this.result != null) this.result.close();
 			queryState.buildRequest(sql, ((Query)statement).getQueryBody(), connection.getSchema());
@@ -81,8 +107,115 @@ public class ESStatement implements Statement {
 		}else throw new SQLException("Provided query is not a SELECT or EXPLAIN query");
 	}
 
+	/**
+	 * Executes the provided SELECT without blocking the calling thread, results are converted using the
+	 * common {@link ForkJoinPool}. Obtain this extension through statement.unwrap(ESStatement.class).
+	 * @param sql
+	 * @return
+	 * @throws SQLException if the query cannot be parsed
+	 */
+	public CompletableFuture<ResultSet> executeQueryAsync(String sql) throws SQLException {
+		return executeQueryAsync(sql, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Executes the provided SELECT without blocking the calling thread. The request is built by the calling
+	 * thread and the response is converted by the provided executor. A statement can execute a single
+	 * query at a time, use a statement per query to execute multiple queries concurrently.
+	 * @param sql
+	 * @param executor
+	 * @return a future completed with the ResultSet of the query
+	 * @throws SQLException if the query cannot be parsed
+	 */
+	public CompletableFuture<ResultSet> executeQueryAsync(String sql, Executor executor) throws SQLException {
+		checkOpen();
+		if(connection.getSchema() == null) throw new SQLException("No active index set for this driver. Pleas specify an active index or alias by executing 'USE <index/alias>' first");
+		sql = sql.replaceAll("\r", " ").replaceAll("\n", " ");
+		com.facebook.presto.sql.tree.Statement statement = connection.getStatementCache().get(sql);
+		if(!(statement instanceof Query)) throw new SQLException("Provided query is not a SELECT query");
+		if(this.result != null) this.result.close();
+		this.result = null;
+		long execution = nextExecution();
+		queryState.buildRequest(sql, ((Query)statement).getQueryBody(), connection.getSchema());
+		return keepResult(queryState.executeAsync(executor), execution);
+	}
+	
+	/**
+	 * Fetches the next page of results of the last query without blocking the calling thread
+	 * @param executor used to convert the results
+	 * @return a future completed with the next ResultSet or NULL if there are no more results
+	 * @throws SQLException
+	 */
+	public CompletableFuture<ResultSet> getMoreResultsAsync(Executor executor) throws SQLException {
+		checkOpen();
+		boolean lateral = Utils.getBooleanProp(this.connection.getClientInfo(), Utils.PROP_RESULT_NESTED_LATERAL, true);
+		return keepResult(queryState.moreResultsAsync(lateral, executor), nextExecution());
+	}
+	
+	/**
+	 * Starts a new execution, results of asynchronous executions started before are no longer kept
+	 * @return the id of the new execution
+	 */
+	private synchronized long nextExecution(){
+		return ++execution;
+	}
+	
+	/**
+	 * Sets the ResultSet the future is completed with as the current result of this statement, unless
+	 * another query was executed (or the statement was closed) in the meantime
+	 * @param future
+	 * @param id the execution the future belongs to
+	 */
+	private CompletableFuture<ResultSet> keepResult(CompletableFuture<ResultSet> future, final long id){
+		return future.thenApply(new Function<ResultSet, ResultSet>(){
+			@Override
+			public ResultSet apply(ResultSet rs) {
+				synchronized (ESStatement.this) {
+					if(execution == id) result = rs;
+				}
+				return rs;
+			}
+		});
+	}
+
+	/**
+	 * Executes the provided SELECT statements as a single multi search request. The results are converted
+	 * concurrently using the common {@link ForkJoinPool}, converting a scroll whose first page is empty blocks
+	 * a pool thread while the next page is fetched, use {@link #executeQueries(List, Executor)} to provide a 
+	 * dedicated executor. Obtain this extension through statement.unwrap(ESStatement.class).
+	 * @param sqls
+	 * @return one ResultSet per query in the same order as the queries provided
+	 * @throws SQLException
+	 */
+	public List<ResultSet> executeQueries(List<String> sqls) throws SQLException {
+		return executeQueries(sqls, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Executes the provided SELECT statements as a single multi search request. The ResultSets of a 
+	 * previous batch are closed when a new batch is executed or the statement is closed.
+	 * @param sqls
+	 * @param executor used to convert the responses concurrently
+	 * @return one ResultSet per query in the same order as the queries provided
+	 * @throws SQLException
+	 */
+	public List<ResultSet> executeQueries(List<String> sqls, Executor executor) throws SQLException {
+		checkOpen();
+		if(connection.getSchema() == null) throw new SQLException("No active index set for this driver. Pleas specify an active index or alias by executing 'USE <index/alias>' first");
+		if(multiQueryState != null) multiQueryState.close();
+		multiQueryState = new ESMultiQueryState(connection.getClient(), this);
+		for(String sql : sqls){
+			sql = sql.replaceAll("\r", " ").replaceAll("\n", " ");
+			com.facebook.presto.sql.tree.Statement statement = connection.getStatementCache().get(sql);
+			if(!(statement instanceof Query)) throw new SQLException("Provided query is not a SELECT query: "+sql);
+			multiQueryState.add(sql, ((Query)statement).getQueryBody(), connection.getSchema());
+		}
+		return multiQueryState.execute(executor);
+	}
+	
 	@Override
 	public int executeUpdate(String sql) throws SQLException {
+		checkOpen();
 		sql = sql.replaceAll("\r", " ").replaceAll("\n", " ").trim();
 		// custom stuff to support UPDATE statements since Presto does not parse it
 		if(sql.toLowerCase().startsWith("update")){
@@ -116,8 +249,22 @@ public class ESStatement implements Statement {
 
 	@Override
 	public void close() throws SQLException {
+		if(closed) return;
 		queryState.close();
 		updateState.close();
+		if(multiQueryState != null) multiQueryState.close();
+		multiQueryState = null;
+		nextExecution();
+		this.result = null;
+		this.closed = true;
+		connection.statementClosed(this);
+	}
+	
+	/**
+	 * @throws SQLException if this statement has been closed
+	 */
+	protected void checkOpen() throws SQLException{
+		if(closed) throw new SQLException("Statement is closed");
 	}
 
 	@Override
@@ -138,6 +285,7 @@ public class ESStatement implements Statement {
 
 	@Override
 	public void setMaxRows(int max) throws SQLException {
+		checkOpen();
 		this.queryState.setMaxRows(max);
 	}
 
@@ -180,6 +328,7 @@ public class ESStatement implements Statement {
 
 	@Override
 	public boolean execute(String sql) throws SQLException {
+		checkOpen();
 		sql = sql.replaceAll("\r", " ").replaceAll("\n", " ");
 		String sqlNorm = sql.trim().toLowerCase();
 		if(sqlNorm.startsWith("select") || sqlNorm.startsWith("explain")) {
@@ -205,6 +354,8 @@ public class ESStatement implements Statement {
 
 	@Override
 	public boolean getMoreResults() throws SQLException {
+		checkOpen();
+		nextExecution();
 		this.result = queryState.moreResutls(Utils.getBooleanProp(this.connection.getClientInfo(), Utils.PROP_RESULT_NESTED_LATERAL, true));
 		return result != null;
 	}
@@ -241,28 +392,33 @@ public class ESStatement implements Statement {
 
 	@Override
 	public void addBatch(String sql) throws SQLException {
+		checkOpen();
 		sql = sql.trim().replaceAll("\r", " ").replaceAll("\n", " ");
 		updateState.addToBulk(sql, this.getConnection().getSchema());
 	}
 
 	@Override
 	public void clearBatch() throws SQLException {
+		checkOpen();
 		this.updateState.clearBulk();
 	}
 
 	@Override
 	public int[] executeBatch() throws SQLException {
+		checkOpen();
 		return this.updateState.executeBulk();
 	}
 
 	@Override
 	public Connection getConnection() throws SQLException {
-		return this.connection;
+		return this.connection.getHandle();
 	}
 
 	@Override
 	public boolean getMoreResults(int current) throws SQLException {
+		checkOpen();
 		// TODO use current param
+		nextExecution();
 		ResultSet newResult = queryState.moreResutls(Utils.getBooleanProp(this.connection.getClientInfo(), Utils.PROP_RESULT_NESTED_LATERAL, true));
 		if(newResult == null) return false;
 		this.result = newResult;
@@ -311,7 +467,7 @@ public class ESStatement implements Statement {
 
 	@Override
 	public boolean isClosed() throws SQLException {
-		return connection.isClosed();
+		return closed || connection.isClosed();
 	}
 
 	@Override
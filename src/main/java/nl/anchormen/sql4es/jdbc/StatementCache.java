@@ -0,0 +1,148 @@
+package nl.anchormen.sql4es.jdbc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import nl.anchormen.sql4es.QueryPlan;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.Statement;
+
+/**
+ * Least recently used cache of parsed sql statements keyed by their sql text. Parsing sql with the Presto
+ * parser is the most expensive step in building a request, applications like dashboards issue the same
+ * statements over and over again. Parsed statements are immutable and independent of the mappings of
+ * the index so they can be reused by all statements of a connection. In addition the {@link QueryPlan}s
+ * built for SELECT statements are cached so repeated queries skip planning as well. Plans depend on the
+ * mappings and properties of the connection and are cleared when these change. Entries expire after the 
+ * configured time to live. A maximum size of 0 disables the cache.
+ *
+ * @author cversloot
+ *
+ */
+public class StatementCache {
+
+	private final SqlParser parser;
+	private final int maxSize;
+	private final long ttlMs;
+	private final Map<String, Entry> cache;
+	private final Map<String, PlanEntry> plans;
+	private long version = 0;
+
+	@SuppressWarnings("serial")
+	public StatementCache(SqlParser parser, final int maxSize, long ttlMs){
+		this.parser = parser;
+		this.maxSize = maxSize;
+		this.ttlMs = ttlMs;
+		this.cache = new LinkedHashMap<String, Entry>(16, 0.75f, true){
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > maxSize;
+			}
+		};
+		this.plans = new LinkedHashMap<String, PlanEntry>(16, 0.75f, true){
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PlanEntry> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the parsed statement for the provided sql, parsing it if it is not cached (anymore)
+	 * @param sql
+	 * @return
+	 */
+	public Statement get(String sql){
+		if(maxSize <= 0) return parser.createStatement(sql);
+		long now = System.currentTimeMillis();
+		synchronized (cache) {
+			Entry entry = cache.get(sql);
+			if(entry != null && (ttlMs <= 0 || now - entry.created < ttlMs)) return entry.statement;
+		}
+		Statement statement = parser.createStatement(sql);
+		synchronized (cache) {
+			cache.put(sql, new Entry(statement, now));
+		}
+		return statement;
+	}
+
+	/**
+	 * Returns the cached plan for the provided key
+	 * @param key identifies the sql, indices and limit the plan was built for
+	 * @return the plan or NULL if it is not cached (anymore)
+	 */
+	public QueryPlan getPlan(String key){
+		if(maxSize <= 0) return null;
+		long now = System.currentTimeMillis();
+		synchronized (plans) {
+			PlanEntry entry = plans.get(key);
+			if(entry != null && (ttlMs <= 0 || now - entry.created < ttlMs)) return entry.plan;
+			return null;
+		}
+	}
+	
+	/**
+	 * @return the version of the cached plans, it changes every time the plans are cleared
+	 */
+	public long getPlanVersion(){
+		synchronized (plans) {
+			return version;
+		}
+	}
+	
+	/**
+	 * Caches the provided plan unless the plans were cleared since it was started to be built 
+	 * @param key
+	 * @param version the version obtained through {@link #getPlanVersion()} before building the plan
+	 * @param plan
+	 */
+	public void putPlan(String key, long version, QueryPlan plan){
+		if(maxSize <= 0) return;
+		synchronized (plans) {
+			if(version == this.version) plans.put(key, new PlanEntry(plan, System.currentTimeMillis()));
+		}
+	}
+	
+	/**
+	 * Removes all cached plans, must be called when the mappings or properties of the connection change
+	 */
+	public void clearPlans(){
+		synchronized (plans) {
+			plans.clear();
+			version++;
+		}
+	}
+	
+	/**
+	 * Removes all cached statements and plans
+	 */
+	public void clear(){
+		synchronized (cache) {
+			cache.clear();
+		}
+		clearPlans();
+	}
+
+	private static class Entry {
+
+		private final Statement statement;
+		private final long created;
+
+		private Entry(Statement statement, long created){
+			this.statement = statement;
+			this.created = created;
+		}
+	}
+
+	private static class PlanEntry {
+
+		private final QueryPlan plan;
+		private final long created;
+
+		private PlanEntry(QueryPlan plan, long created){
+			this.plan = plan;
+			this.created = created;
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package nl.anchormen.sql4es.jdbc;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.anchormen.sql4es.MappingCache;
+import nl.anchormen.sql4es.model.Utils;
+
+/**
+ * Shares {@link TransportClient}s between all connections to the same cluster. A TransportClient has its own
+ * thread pools and connections to all nodes, building one for every connection makes connecting slow and wastes
+ * resources when connections are pooled. Clients are keyed by the hosts they connect to and the (non driver)
+ * settings used to build them and are closed when the last connection using them releases them.
+ *
+ * @author cversloot
+ *
+ */
+public class TransportClientPool {
+
+	private static final Logger logger = LoggerFactory.getLogger(TransportClientPool.class);
+	private static final Set<Object> driverProperties = Utils.defaultProps().keySet();
+	private static final Map<String, SharedClient> clients = new HashMap<String, SharedClient>();
+	private static final Map<Client, SharedClient> byClient = new IdentityHashMap<Client, SharedClient>();
+
+	/**
+	 * Returns the client for the provided host and properties, building it if no connection is using it yet.
+	 * Every client acquired must be released using {@link #release(Client)}
+	 * @param host
+	 * @param port
+	 * @param props all properties are copied to the Settings used to create the client
+	 * @return
+	 * @throws SQLException
+	 */
+	public static synchronized Client acquire(String host, int port, Properties props) throws SQLException{
+		String key = key(host, port, props);
+		SharedClient shared = clients.get(key);
+		if(shared == null){
+			shared = new SharedClient(key, buildClient(host, port, props));
+			clients.put(key, shared);
+			byClient.put(shared.client, shared);
+		}
+		shared.references++;
+		return shared.client;
+	}
+
+	/**
+	 * Releases a client acquired through {@link #acquire(String, int, Properties)}, closing it when it is no
+	 * longer used by any connection
+	 * @param client
+	 */
+	public static synchronized void release(Client client){
+		SharedClient shared = byClient.get(client);
+		if(shared == null){
+			MappingCache.remove(client);
+			client.close();
+			return;
+		}
+		shared.references--;
+		if(shared.references <= 0){
+			clients.remove(shared.key);
+			byClient.remove(client);
+			MappingCache.remove(client);
+			client.close();
+		}
+	}
+
+	/**
+	 * Builds the key identifying the cluster and settings of a client
+	 * @param host
+	 * @param port
+	 * @param props
+	 * @return
+	 */
+	private static String key(String host, int port, Properties props){
+		Map<String, String> settings = new TreeMap<String, String>();
+		for(Object key : props.keySet()){
+			Object value = props.get(key);
+			if(driverProperties.contains(key) || !(value instanceof String)) continue;
+			settings.put(key.toString(), (String)value);
+		}
+		return host+":"+port+settings;
+	}
+
+	/**
+	 * Builds the Elasticsearch client using the provided properties
+	 * @return
+	 * @throws SQLException
+	 */
+	private static Client buildClient(String host, int port, Properties props) throws SQLException {
+		 try {
+			Settings.Builder settingsBuilder = Settings.settingsBuilder();
+			for(Object key : props.keySet()){
+				settingsBuilder.put(key, props.get(key));
+			}
+			Settings settings = settingsBuilder.build();
+			TransportClient client = TransportClient.builder().settings(settings).build()
+				.addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName(host), port));
+
+			// add additional hosts if set in URL query part
+			if(props.containsKey("es.hosts"))
+				for(String hostPort : props.getProperty("es.hosts").split(",")){
+					String newHost = hostPort.split(":")[0].trim();
+					int newPort = (hostPort.split(":").length > 1 ? Integer.parseInt(hostPort.split(":")[1]) : Utils.PORT);
+					client.addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName(newHost), newPort));
+					logger.info("Adding additional ES host: "+hostPort);
+			}
+			return client;
+		} catch (UnknownHostException e) {
+			throw new SQLException ("Unable to connect to "+host, e);
+		} catch (Throwable t){
+			throw new SQLException("Unable to connect to database", t);
+		}
+	}
+
+	private static class SharedClient {
+
+		private final String key;
+		private final Client client;
+		private int references = 0;
+
+		private SharedClient(String key, Client client){
+			this.key = key;
+			this.client = client;
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package nl.anchormen.sql4es.model;
 
 import java.sql.Types;
+import java.util.Map;
 
 import nl.anchormen.sql4es.model.expression.ICalculation;
 
@@ -12,7 +13,7 @@ import nl.anchormen.sql4es.model.expression.ICalculation;
  */
 public class Column implements Comparable<Column>{
 	
-	public enum Operation {NONE, AVG, SUM, MIN, MAX, COUNT, HIGHLIGHT}
+	public enum Operation {NONE, AVG, SUM, MIN, MAX, COUNT, COUNT_DISTINCT, STDDEV, VARIANCE, HIGHLIGHT, DATE_TRUNC, HISTOGRAM, PERCENTILE, PERCENTILE_RANK}
 	
 	private String columnName;
 	private String tableName;
@@ -23,6 +24,8 @@ public class Column implements Comparable<Column>{
 	private int sqlType = Types.OTHER;
 	private ICalculation calculation = null;
 	private boolean isVisible = true;
+	private String argument = null;
+	private String script = null;
 	
 	public Column(String columnName, Operation op) {
 		this.columnName = columnName;
@@ -32,12 +35,19 @@ public class Column implements Comparable<Column>{
 		
 		switch(this.op){
 			case COUNT: sqlType = Types.BIGINT; break;
+			case COUNT_DISTINCT: sqlType = Types.BIGINT; break;
 			case NONE: sqlType = Types.VARCHAR; break;
 			case MIN: sqlType = Types.DOUBLE; break;
 			case MAX: sqlType = Types.DOUBLE; break;
 			case SUM: sqlType = Types.DOUBLE; break;
 			case AVG: sqlType = Types.DOUBLE; break;
+			case STDDEV: sqlType = Types.DOUBLE; break;
+			case VARIANCE: sqlType = Types.DOUBLE; break;
 			case HIGHLIGHT: sqlType = Types.ARRAY; break;
+			case DATE_TRUNC: sqlType = Types.TIMESTAMP; break;
+			case PERCENTILE: sqlType = Types.DOUBLE; break;
+			case PERCENTILE_RANK: sqlType = Types.DOUBLE; break;
+			case HISTOGRAM: sqlType = Types.BIGINT; break;
 			default: sqlType = Types.OTHER;
 		}
 		if(calculation != null) sqlType = Types.DOUBLE;
@@ -90,7 +100,7 @@ public class Column implements Comparable<Column>{
 
 	/**
 	 * Gets the operation of this column
-	 * @return any of {NONE, AVG, SUM, MIN, MAX, COUNT}
+	 * @return any of {NONE, AVG, SUM, MIN, MAX, COUNT, COUNT_DISTINCT, STDDEV, VARIANCE, HIGHLIGHT, DATE_TRUNC, HISTOGRAM, PERCENTILE, PERCENTILE_RANK}
 	 */
 	public Operation getOp() {
 		return op;
@@ -133,9 +143,16 @@ public class Column implements Comparable<Column>{
 		switch(op){
 			case AVG: return "avg("+name+")";
 			case COUNT: return "count("+name+")";
+			case COUNT_DISTINCT: return "count(DISTINCT "+name+")";
 			case MAX: return "max("+name+")";
 			case MIN: return "min("+name+")";
 			case SUM: return "sum("+name+")";
+			case STDDEV: return "stddev("+name+")";
+			case VARIANCE: return "variance("+name+")";
+			case DATE_TRUNC: return "date_trunc('"+argument+"', "+name+")";
+			case HISTOGRAM: return "histogram("+name+", "+argument+")";
+			case PERCENTILE: return "percentile("+name+", "+argument+")";
+			case PERCENTILE_RANK: return "percentile_rank("+name+", "+argument+")";
 			default : return name;
 		}
 	}
@@ -148,14 +165,32 @@ public class Column implements Comparable<Column>{
 		switch(op){
 			case AVG: return "avg("+name+")";
 			case COUNT: return "count("+name+")";
+			case COUNT_DISTINCT: return "count(DISTINCT "+name+")";
 			case MAX: return "max("+name+")";
 			case MIN: return "min("+name+")";
 			case SUM: return "sum("+name+")";
+			case STDDEV: return "stddev("+name+")";
+			case VARIANCE: return "variance("+name+")";
+			case DATE_TRUNC: return "date_trunc('"+argument+"', "+name+")";
+			case HISTOGRAM: return "histogram("+name+", "+argument+")";
+			case PERCENTILE: return "percentile("+name+", "+argument+")";
+			case PERCENTILE_RANK: return "percentile_rank("+name+", "+argument+")";
 			default : return name;
 		}
 	}
 	
 	
+	/**
+	 * @return the name of the multi value aggregation used to calculate this column when it is fused with other
+	 * metrics on the same field. For example 'stats(column)' or 'percentiles(column)'
+	 */
+	public String getStatsName(){
+		switch(op){
+			case PERCENTILE: return "percentiles("+getColumn()+")";
+			case PERCENTILE_RANK: return "percentile_ranks("+getColumn()+")";
+			default: return "stats("+getColumn()+")";
+		}
+	}
 	
 	public int getSqlType() {
 		return sqlType;
@@ -166,7 +201,34 @@ public class Column implements Comparable<Column>{
 	 * @param sqlType
 	 */
 	public Column setSqlType(int sqlType) {
-		if(this.op != Operation.AVG)	this.sqlType = sqlType;
+		switch(op){
+			case AVG: case COUNT_DISTINCT: case STDDEV: case VARIANCE: case DATE_TRUNC: case HISTOGRAM: 
+			case PERCENTILE: case PERCENTILE_RANK: break;
+			default: this.sqlType = sqlType;
+		}
+		return this;
+	}
+	
+	/**
+	 * @return true if this column groups values into buckets (DATE_TRUNC or HISTOGRAM) and can be used
+	 * as a GROUP BY key
+	 */
+	public boolean isBucket(){
+		return op == Operation.DATE_TRUNC || op == Operation.HISTOGRAM;
+	}
+	
+	/**
+	 * Gets the second argument of the function of this column. This is the size of the buckets of a 
+	 * DATE_TRUNC (time unit like 'hour') or HISTOGRAM (number) column, the percentile of a PERCENTILE column
+	 * or the value of a PERCENTILE_RANK column.
+	 * @return the argument or NULL if the function does not have one
+	 */
+	public String getArgument(){
+		return argument;
+	}
+	
+	public Column setArgument(String argument){
+		this.argument = argument;
 		return this;
 	}
 
@@ -181,6 +243,30 @@ public class Column implements Comparable<Column>{
 		return this;
 	}
 	
+	/**
+	 * Copies this column including its calculation. Columns are looked up by identity in the provided map so every
+	 * column referenced (by calculations or comparisons) is copied only once.
+	 * @param columns the copies made so far, the copy of this column is added to it
+	 * @return the copy of this column
+	 */
+	public Column copy(Map<Column, Column> columns){
+		Column copy = columns.get(this);
+		if(copy != null) return copy;
+		copy = new Column(columnName);
+		columns.put(this, copy);
+		copy.tableName = tableName;
+		copy.tableAlias = tableAlias;
+		copy.op = op;
+		copy.alias = alias;
+		copy.index = index;
+		copy.sqlType = sqlType;
+		copy.isVisible = isVisible;
+		copy.argument = argument;
+		copy.script = script;
+		if(calculation != null) copy.calculation = calculation.copy(columns);
+		return copy;
+	}
+	
 	public int hashCode(){
 		return (columnName+alias+op).hashCode();
 	}
@@ -206,6 +292,21 @@ public class Column implements Comparable<Column>{
 	public boolean hasCalculation(){
 		return this.calculation != null;
 	}
+	
+	/**
+	 * Gets the script elasticsearch uses to calculate the value of this column. For metrics this is the script
+	 * providing the values to aggregate (like sum(price*qty)), for calculations it is the script_field
+	 * providing the result.
+	 * @return the script or NULL if the value is not calculated by a script
+	 */
+	public String getScript(){
+		return script;
+	}
+	
+	public Column setScript(String script){
+		this.script = script;
+		return this;
+	}
 
 	public boolean isVisible() {
 		return isVisible;
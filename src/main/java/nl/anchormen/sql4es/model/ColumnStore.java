@@ -0,0 +1,490 @@
+package nl.anchormen.sql4es.model;
+
+import java.sql.Types;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Column oriented storage for the rows of a resultset. Each column is stored in a vector chosen using the sql type
+ * of the {@link Column} in the {@link Heading}: BIGINT, INTEGER, SMALLINT and TINYINT in a long[], DOUBLE, FLOAT and
+ * REAL in a double[], BOOLEAN and BIT in a bitset and VARCHAR as dictionary encoded strings. All other types are
+ * stored as objects. Each vector has a bitmap indicating which rows have a value (i.e. are not NULL).
+ * When a value is stored that does not fit a vector (like a String in a BIGINT column) the vector is converted
+ * into an object vector holding all of its values.
+ *
+ * Rows are added as lists (as created by the parsers) and can be accessed as lists again using {@link #getRow(int)}
+ * which provides a view on the store instead of a copy.
+ *
+ * @author cversloot
+ *
+ */
+public class ColumnStore {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final Heading heading;
+	private final List<ColumnVector> vectors = new ArrayList<ColumnVector>();
+	private int size = 0;
+	private int width = 0;
+
+	public ColumnStore(Heading heading){
+		this.heading = heading;
+	}
+
+	/**
+	 * @return the number of rows in this store
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @return the number of columns in this store
+	 */
+	public int width(){
+		return width;
+	}
+
+	/**
+	 * Adds the first <i>width</i> values of the row as a new row to this store
+	 * @param row
+	 * @param width
+	 */
+	public void add(List<Object> row, int width){
+		int rowNr = size++;
+		width = Math.min(width, row.size());
+		if(width > this.width) this.width = width;
+		for(int c=0; c<width; c++){
+			Object value = row.get(c);
+			if(value != null) set(rowNr, c, value);
+		}
+	}
+
+	/**
+	 * Sets the value for the specified row and column, NULL values are allowed
+	 * @param row
+	 * @param col
+	 * @param value
+	 */
+	public void set(int row, int col, Object value){
+		if(col >= width) width = col + 1;
+		ColumnVector vector = vector(col);
+		if(value != null && !vector.accepts(value)){
+			vector = new ObjectVector(vector, size);
+			vectors.set(col, vector);
+		}
+		vector.set(row, value);
+	}
+
+	public Object get(int row, int col){
+		if(col >= vectors.size() || vectors.get(col) == null) return null;
+		return vectors.get(col).get(row);
+	}
+
+	public boolean isNull(int row, int col){
+		if(col >= vectors.size() || vectors.get(col) == null) return true;
+		return !vectors.get(col).present.get(row);
+	}
+
+	/**
+	 * Gets the value as long, reading it without boxing if possible.
+	 * @param row
+	 * @param col
+	 * @return the value or 0 if it is NULL
+	 */
+	public long getLong(int row, int col){
+		if(isNull(row, col)) return 0;
+		ColumnVector vector = vectors.get(col);
+		if(vector instanceof LongVector) return ((LongVector)vector).values[row];
+		if(vector instanceof DoubleVector) return (long)((DoubleVector)vector).values[row];
+		return ((Number)vector.get(row)).longValue();
+	}
+
+	/**
+	 * Gets the value as double, reading it without boxing if possible.
+	 * @param row
+	 * @param col
+	 * @return the value or 0 if it is NULL
+	 */
+	public double getDouble(int row, int col){
+		if(isNull(row, col)) return 0;
+		ColumnVector vector = vectors.get(col);
+		if(vector instanceof DoubleVector) return ((DoubleVector)vector).values[row];
+		if(vector instanceof LongVector) return ((LongVector)vector).values[row];
+		if(vector instanceof BooleanVector) return ((BooleanVector)vector).values.get(row) ? 1 : 0;
+		return ((Number)vector.get(row)).doubleValue();
+	}
+
+	/**
+	 * Sets the double value for the specified row and column, writing it without boxing if possible.
+	 * @param row
+	 * @param col
+	 * @param value
+	 */
+	public void setDouble(int row, int col, double value){
+		ColumnVector vector = col < vectors.size() ? vectors.get(col) : null;
+		if(vector instanceof DoubleVector){
+			DoubleVector doubles = (DoubleVector)vector;
+			if(row >= doubles.values.length) doubles.values = Arrays.copyOf(doubles.values, grow(doubles.values.length, row + 1));
+			doubles.values[row] = value;
+			doubles.present.set(row);
+		}else set(row, col, value);
+	}
+
+	/**
+	 * Provides a List view on the specified row, changes made to the list are written into this store
+	 * @param row
+	 * @return
+	 */
+	public List<Object> getRow(int row){
+		return new RowView(row);
+	}
+
+	/**
+	 * Removes all rows from this store
+	 */
+	public void clear(){
+		vectors.clear();
+		size = 0;
+		width = 0;
+	}
+
+	/**
+	 * Sorts the rows in this store using the provided comparator
+	 * @param comparator
+	 */
+	public void sort(final Comparator<List<Object>> comparator){
+		Integer[] order = new Integer[size];
+		for(int i=0; i<size; i++) order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>(){
+			@Override
+			public int compare(Integer r1, Integer r2) {
+				return comparator.compare(getRow(r1), getRow(r2));
+			}
+		});
+		int[] newOrder = new int[size];
+		for(int i=0; i<size; i++) newOrder[i] = order[i];
+		reorder(newOrder);
+	}
+
+	/**
+	 * Rebuilds the store such that row i contains the row order[i] had before. Can be used
+	 * to sort rows as well as to remove them.
+	 * @param order
+	 */
+	public void reorder(int[] order){
+		for(ColumnVector vector : vectors){
+			if(vector != null) vector.reorder(order);
+		}
+		this.size = order.length;
+	}
+
+	/**
+	 * Gets the vector for the provided column, creating it if it does not exist yet
+	 * @param col
+	 * @return
+	 */
+	private ColumnVector vector(int col){
+		while(vectors.size() <= col) vectors.add(null);
+		ColumnVector vector = vectors.get(col);
+		if(vector == null){
+			int type = Types.OTHER;
+			if(col < heading.getColumnCount() && heading.getColumn(col).getIndex() == col){
+				type = heading.getColumn(col).getSqlType();
+			}
+			switch(type){
+				case Types.BIGINT:
+				case Types.INTEGER:
+				case Types.SMALLINT:
+				case Types.TINYINT: vector = new LongVector(type); break;
+				case Types.DOUBLE:
+				case Types.FLOAT:
+				case Types.REAL: vector = new DoubleVector(); break;
+				case Types.BOOLEAN:
+				case Types.BIT: vector = new BooleanVector(); break;
+				case Types.VARCHAR: vector = new StringVector(); break;
+				default: vector = new ObjectVector();
+			}
+			vectors.set(col, vector);
+		}
+		return vector;
+	}
+
+	/**
+	 * List view on a single row within the store
+	 */
+	private class RowView extends AbstractList<Object>{
+
+		private final int row;
+
+		private RowView(int row){
+			this.row = row;
+		}
+
+		@Override
+		public Object get(int col) {
+			return ColumnStore.this.get(row, col);
+		}
+
+		@Override
+		public Object set(int col, Object value){
+			Object old = ColumnStore.this.get(row, col);
+			ColumnStore.this.set(row, col, value);
+			return old;
+		}
+
+		@Override
+		public int size() {
+			return width;
+		}
+	}
+
+	private static int grow(int capacity, int required){
+		return Math.max(required, Math.max(INITIAL_CAPACITY, capacity + (capacity >> 1)));
+	}
+
+	/**
+	 * Base for all column vectors, keeps track of the rows having a value
+	 */
+	private static abstract class ColumnVector {
+
+		protected BitSet present = new BitSet();
+
+		abstract boolean accepts(Object value);
+
+		abstract Object get(int row);
+
+		abstract void set(int row, Object value);
+
+		abstract void reorder(int[] order);
+
+		protected BitSet reorderPresent(int[] order){
+			BitSet newPresent = new BitSet(order.length);
+			for(int i=0; i<order.length; i++) if(present.get(order[i])) newPresent.set(i);
+			return newPresent;
+		}
+	}
+
+	private static class LongVector extends ColumnVector {
+
+		private final int sqlType;
+		private long[] values = new long[0];
+
+		private LongVector(int sqlType){
+			this.sqlType = sqlType;
+		}
+
+		@Override
+		boolean accepts(Object value) {
+			if(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) return true;
+			if(value instanceof Double || value instanceof Float){
+				double d = ((Number)value).doubleValue();
+				return d == (long)d;
+			}
+			return false;
+		}
+
+		@Override
+		Object get(int row) {
+			if(!present.get(row)) return null;
+			switch(sqlType){
+				case Types.INTEGER: return (int)values[row];
+				case Types.SMALLINT: return (short)values[row];
+				case Types.TINYINT: return (byte)values[row];
+				default: return values[row];
+			}
+		}
+
+		@Override
+		void set(int row, Object value) {
+			if(value == null){
+				present.clear(row);
+				return;
+			}
+			if(row >= values.length) values = Arrays.copyOf(values, grow(values.length, row + 1));
+			values[row] = ((Number)value).longValue();
+			present.set(row);
+		}
+
+		@Override
+		void reorder(int[] order) {
+			long[] newValues = new long[order.length];
+			for(int i=0; i<order.length; i++) if(order[i] < values.length) newValues[i] = values[order[i]];
+			this.present = reorderPresent(order);
+			this.values = newValues;
+		}
+	}
+
+	private static class DoubleVector extends ColumnVector {
+
+		private double[] values = new double[0];
+
+		@Override
+		boolean accepts(Object value) {
+			return value instanceof Number && !(value instanceof java.math.BigDecimal);
+		}
+
+		@Override
+		Object get(int row) {
+			if(!present.get(row)) return null;
+			return values[row];
+		}
+
+		@Override
+		void set(int row, Object value) {
+			if(value == null){
+				present.clear(row);
+				return;
+			}
+			if(row >= values.length) values = Arrays.copyOf(values, grow(values.length, row + 1));
+			values[row] = ((Number)value).doubleValue();
+			present.set(row);
+		}
+
+		@Override
+		void reorder(int[] order) {
+			double[] newValues = new double[order.length];
+			for(int i=0; i<order.length; i++) if(order[i] < values.length) newValues[i] = values[order[i]];
+			this.present = reorderPresent(order);
+			this.values = newValues;
+		}
+	}
+
+	private static class BooleanVector extends ColumnVector {
+
+		private BitSet values = new BitSet();
+
+		@Override
+		boolean accepts(Object value) {
+			return value instanceof Boolean;
+		}
+
+		@Override
+		Object get(int row) {
+			if(!present.get(row)) return null;
+			return values.get(row);
+		}
+
+		@Override
+		void set(int row, Object value) {
+			if(value == null){
+				present.clear(row);
+				return;
+			}
+			values.set(row, (Boolean)value);
+			present.set(row);
+		}
+
+		@Override
+		void reorder(int[] order) {
+			BitSet newValues = new BitSet(order.length);
+			for(int i=0; i<order.length; i++) if(values.get(order[i])) newValues.set(i);
+			this.present = reorderPresent(order);
+			this.values = newValues;
+		}
+	}
+
+	/**
+	 * Dictionary encoded strings. When most of the values turn out to be unique the vector stops accepting
+	 * new values so it will be converted into an object vector.
+	 */
+	private static class StringVector extends ColumnVector {
+
+		private static final int MIN_DICTIONARY_SIZE = 1024;
+
+		private int[] codes = new int[0];
+		private List<String> dictionary = new ArrayList<String>();
+		private Map<String, Integer> lookup = new HashMap<String, Integer>();
+		private int count = 0;
+
+		@Override
+		boolean accepts(Object value) {
+			if(!(value instanceof String)) return false;
+			return dictionary.size() < MIN_DICTIONARY_SIZE || dictionary.size() < count / 2 || lookup.containsKey(value);
+		}
+
+		@Override
+		Object get(int row) {
+			if(!present.get(row)) return null;
+			return dictionary.get(codes[row]);
+		}
+
+		@Override
+		void set(int row, Object value) {
+			if(value == null){
+				present.clear(row);
+				return;
+			}
+			Integer code = lookup.get(value);
+			if(code == null){
+				code = dictionary.size();
+				dictionary.add((String)value);
+				lookup.put((String)value, code);
+			}
+			if(row >= codes.length) codes = Arrays.copyOf(codes, grow(codes.length, row + 1));
+			codes[row] = code;
+			present.set(row);
+			count++;
+		}
+
+		@Override
+		void reorder(int[] order) {
+			int[] newCodes = new int[order.length];
+			for(int i=0; i<order.length; i++) if(order[i] < codes.length) newCodes[i] = codes[order[i]];
+			this.present = reorderPresent(order);
+			this.codes = newCodes;
+		}
+	}
+
+	private static class ObjectVector extends ColumnVector {
+
+		private Object[] values = new Object[0];
+
+		private ObjectVector(){}
+
+		/**
+		 * Creates an object vector holding all values of the provided vector
+		 * @param vector
+		 * @param size
+		 */
+		private ObjectVector(ColumnVector vector, int size){
+			this.values = new Object[Math.max(size, INITIAL_CAPACITY)];
+			for(int i=0; i<size; i++){
+				values[i] = vector.get(i);
+			}
+			this.present = vector.present;
+		}
+
+		@Override
+		boolean accepts(Object value) {
+			return true;
+		}
+
+		@Override
+		Object get(int row) {
+			if(row >= values.length) return null;
+			return values[row];
+		}
+
+		@Override
+		void set(int row, Object value) {
+			if(row >= values.length) values = Arrays.copyOf(values, grow(values.length, row + 1));
+			values[row] = value;
+			present.set(row, value != null);
+		}
+
+		@Override
+		void reorder(int[] order) {
+			Object[] newValues = new Object[order.length];
+			for(int i=0; i<order.length; i++) if(order[i] < values.length) newValues[i] = values[order[i]];
+			this.present = reorderPresent(order);
+			this.values = newValues;
+		}
+	}
+}
@@ -10,6 +10,7 @@ import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -43,6 +44,15 @@ public class Heading {
 	private boolean allColumns = false;
 	private boolean indexed = false;
 	
+	// patterns used to find column references in the original sql, these are the same for repeated queries
+	@SuppressWarnings("serial")
+	private static final Map<String, Pattern> patterns = Collections.synchronizedMap(new LinkedHashMap<String, Pattern>(16, 0.75f, true){
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+			return size() > 2000;
+		}
+	});
+	
 	public Heading(){}
 	
 	/**
@@ -70,13 +80,33 @@ public class Heading {
 		}
 		// set type
 		if(column.getColumn().equals(SCORE)) column.setSqlType(Types.DOUBLE);
-		if(column.getOp() == Operation.COUNT) column.setSqlType(Types.BIGINT);
-		else if(column.getOp() == Operation.AVG || column.hasCalculation()) column.setSqlType(Types.FLOAT);
+		if(column.getOp() == Operation.COUNT || column.getOp() == Operation.COUNT_DISTINCT) column.setSqlType(Types.BIGINT);
+		else if(column.getOp() == Operation.AVG || column.getOp() == Operation.STDDEV || column.getOp() == Operation.VARIANCE 
+				|| column.hasCalculation()) column.setSqlType(Types.FLOAT);
 		else if(column.getSqlType() != Types.ARRAY && typeIndex.containsKey(column.getColumn())){
 			column.setSqlType(typeIndex.get(column.getColumn()));
 		}
 	}
 	
+	/**
+	 * Copies this heading and all its columns so it can be used (and modified) while parsing results
+	 * without affecting this one
+	 * @param columns identity map the copies of all columns are added to, used to copy expressions referring to them
+	 * @return
+	 */
+	public Heading copy(Map<Column, Column> columns){
+		Heading copy = new Heading();
+		for(Column col : this.columns) copy.columns.add(col.copy(columns));
+		for(Map.Entry<String, Column> entry : fieldIndex.entrySet()) copy.fieldIndex.put(entry.getKey(), entry.getValue().copy(columns));
+		for(Map.Entry<String, Column> entry : aliasIndex.entrySet()) copy.aliasIndex.put(entry.getKey(), entry.getValue().copy(columns));
+		copy.labelToColNr.putAll(labelToColNr);
+		copy.columnToColIndex.putAll(columnToColIndex);
+		copy.typeIndex = typeIndex;
+		copy.allColumns = allColumns;
+		copy.indexed = indexed;
+		return copy;
+	}
+	
 	public void remove(Column column){
 		for(int i=0; i<columns.size(); i++){
 			Column col = columns.get(i);
@@ -229,10 +259,14 @@ public class Heading {
 				switch(c.getOp()){
 					case AVG: name = "AVG\\(\\s*"+name+"\\s*\\)"; break;
 					case COUNT: name = "COUNT\\(\\s*"+name+"\\s*\\)";break;
+					case COUNT_DISTINCT: name = "COUNT\\(\\s*DISTINCT\\s+"+name+"\\s*\\)";break;
 					case MAX: name = "MAX\\(\\s*"+name+"\\s*\\)"; break;
 					case MIN: name = "MIN\\(\\s*"+name+"\\s*\\)"; break;
 					case SUM: name = "SUM\\(\\s*"+name+"\\s*\\)"; break;
+					case STDDEV: name = "STDDEV\\(\\s*"+name+"\\s*\\)"; break;
+					case VARIANCE: name = "VARIANCE\\(\\s*"+name+"\\s*\\)"; break;
 					case HIGHLIGHT: name = "HIGHLIGHT\\(\\s*"+name+"\\s*\\)"; break;
+					case DATE_TRUNC: case HISTOGRAM: case PERCENTILE: case PERCENTILE_RANK: continue; // labels of functions with two arguments are not taken from the sql
 					default: name = c.getColumn();
 				}
 				String alias = findOriginal(originalSql, name, prefix, suffix);
@@ -243,8 +277,13 @@ public class Heading {
 	
 	public static String findOriginal(String originalSql, String target, String prefix, String suffix){
 		//if(target.contains("*")) return target;
-		String pattern = target.replaceAll("\\*","\\\\*").replaceAll("\\(", "\\\\s*\\\\(\\\\s*").replaceAll("\\)", "\\\\s*\\\\)\\\\s*");
-		Pattern p = Pattern.compile(prefix+"("+pattern+")"+suffix, Pattern.CASE_INSENSITIVE);
+		String key = prefix+"("+target+")"+suffix;
+		Pattern p = patterns.get(key);
+		if(p == null){
+			String pattern = target.replaceAll("\\*","\\\\*").replaceAll("\\(", "\\\\s*\\\\(\\\\s*").replaceAll("\\)", "\\\\s*\\\\)\\\\s*");
+			p = Pattern.compile(prefix+"("+pattern+")"+suffix, Pattern.CASE_INSENSITIVE);
+			patterns.put(key, p);
+		}
 		Matcher m = p.matcher(originalSql.replaceAll("\"", "")); // replace quotes to fix things like SELECT "table"."field" FROM ...
 		if(m.find()){
 			return m.group(1);
@@ -259,10 +298,26 @@ public class Heading {
 	 */
 	public boolean aggregateOnly() {
 		if(this.hasAllCols()) return false;
-		for(Column s : columns) if(s.getOp() == Operation.NONE && s.getCalculation() == null) return false;
+		for(Column s : columns) if((s.getOp() == Operation.NONE || s.isBucket()) && s.getCalculation() == null) return false;
 		return true;
 	}
 	
+	/**
+	 * Returns if this heading only specifies count(*) (or count(1)) and calculations on it in which case the
+	 * total number of hits of the query is all that has to be fetched
+	 * @return
+	 */
+	public boolean countOnly() {
+		if(this.hasAllCols()) return false;
+		boolean count = false;
+		for(Column s : columns){
+			if(s.getCalculation() != null) continue;
+			if(s.getOp() != Operation.COUNT || !(s.getColumn().equals("*") || s.getColumn().matches("\\d+"))) return false;
+			count = true;
+		}
+		return count;
+	}
+	
 	/**
 	 * Gets the real index for the provided column number (starting with 1)
 	 * @param nr
@@ -28,6 +28,17 @@ public class Utils {
 	private static final String RESULT_NESTED_LATERAL = "true";
 	private static final int FRAGMENT_SIZE = 100;
 	private static final int FRAGMENT_NUMBER = 1;
+	private static final String RESULT_STREAMING = "false";
+	private static final int SCROLL_PREFETCH = 0; // number of scroll pages to request ahead, 0 disables prefetching
+	private static final int SCROLL_PARALLEL = 0; // number of shards to scroll concurrently, 0 disables parallel scrolling
+	private static final String FETCH_DOC_VALUES = "false";
+	private static final int GROUP_PAGE_SIZE = 0; // number of first level groups to fetch per request (inner levels are not paged), 0 fetches all groups at once
+	private static final int CARDINALITY_PRECISION = 3000; // distinct counts below this threshold are (close to) exact
+	private static final String SCRIPT_FIELDS = "false";
+	private static final int STATEMENT_CACHE_SIZE = 500; // number of parsed statements cached per connection, 0 disables the cache
+	private static final int STATEMENT_CACHE_TTL_SEC = 3600;
+	private static final int STATEMENT_POOL_SIZE = 10; // number of closed statements kept for reuse per connection
+	private static final int MAPPING_REFRESH_SEC = 60; // maximum age of cached index mappings
 	
 	// property keys
 	public static final String PROP_FETCH_SIZE = "fetch.size";
@@ -39,6 +50,17 @@ public class Utils {
 	public static final String PROP_TABLE_COLUMN_MAP = "table.column.info.map";
 	public static final String PROP_FRAGMENT_SIZE = "fragment.size";
 	public static final String PROP_FRAGMENT_NUMBER = "fragment.number";
+	public static final String PROP_RESULT_STREAMING = "result.streaming";
+	public static final String PROP_SCROLL_PREFETCH = "scroll.prefetch";
+	public static final String PROP_SCROLL_PARALLEL = "scroll.parallel";
+	public static final String PROP_FETCH_DOC_VALUES = "fetch.docvalues";
+	public static final String PROP_GROUP_PAGE_SIZE = "group.page.size";
+	public static final String PROP_CARDINALITY_PRECISION = "cardinality.precision.threshold";
+	public static final String PROP_SCRIPT_FIELDS = "script.fields";
+	public static final String PROP_STATEMENT_CACHE_SIZE = "statement.cache.size";
+	public static final String PROP_STATEMENT_CACHE_TTL_SEC = "statement.cache.ttl.sec";
+	public static final String PROP_STATEMENT_POOL_SIZE = "statement.pool.size";
+	public static final String PROP_MAPPING_REFRESH_SEC = "mapping.refresh.sec";
 	
 	public static String getLoggingInfo(){
 		StackTraceElement element = Thread.currentThread().getStackTrace()[2];
@@ -61,6 +83,17 @@ public class Utils {
 		defaults.put(PROP_RESULT_NESTED_LATERAL, RESULT_NESTED_LATERAL);
 		defaults.put(PROP_FRAGMENT_SIZE, FRAGMENT_SIZE);
 		defaults.put(PROP_FRAGMENT_NUMBER, FRAGMENT_NUMBER);
+		defaults.put(PROP_RESULT_STREAMING, RESULT_STREAMING);
+		defaults.put(PROP_SCROLL_PREFETCH, SCROLL_PREFETCH);
+		defaults.put(PROP_SCROLL_PARALLEL, SCROLL_PARALLEL);
+		defaults.put(PROP_FETCH_DOC_VALUES, FETCH_DOC_VALUES);
+		defaults.put(PROP_GROUP_PAGE_SIZE, GROUP_PAGE_SIZE);
+		defaults.put(PROP_CARDINALITY_PRECISION, CARDINALITY_PRECISION);
+		defaults.put(PROP_SCRIPT_FIELDS, SCRIPT_FIELDS);
+		defaults.put(PROP_STATEMENT_CACHE_SIZE, STATEMENT_CACHE_SIZE);
+		defaults.put(PROP_STATEMENT_CACHE_TTL_SEC, STATEMENT_CACHE_TTL_SEC);
+		defaults.put(PROP_STATEMENT_POOL_SIZE, STATEMENT_POOL_SIZE);
+		defaults.put(PROP_MAPPING_REFRESH_SEC, MAPPING_REFRESH_SEC);
 		return defaults;
 	}
 	
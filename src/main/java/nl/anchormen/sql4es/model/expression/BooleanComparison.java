@@ -2,6 +2,9 @@ package nl.anchormen.sql4es.model.expression;
 
 import java.sql.SQLException;
 import java.util.List;
+import java.util.Map;
+
+import nl.anchormen.sql4es.model.Column;
 
 public class BooleanComparison implements IComparison{
 	
@@ -21,6 +24,26 @@ public class BooleanComparison implements IComparison{
 		else return left.evaluate(row) || right.evaluate(row);
 	}
 	
+	@Override
+	public IComparison copy(Map<Column, Column> columns) {
+		return new BooleanComparison(left.copy(columns), right.copy(columns), must);
+	}
+	
+	public IComparison getLeft() {
+		return left;
+	}
+
+	public IComparison getRight() {
+		return right;
+	}
+
+	/**
+	 * @return true if both sides must be true (AND), false if either one must be true (OR)
+	 */
+	public boolean isMust() {
+		return must;
+	}
+
 	public String toString(){
 		return (must?"AND ": "OR  ")+"Left: "+left+"\tRight: "+right;
 	}
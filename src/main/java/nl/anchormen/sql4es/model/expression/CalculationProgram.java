@@ -0,0 +1,139 @@
+package nl.anchormen.sql4es.model.expression;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.facebook.presto.sql.tree.ArithmeticUnaryExpression.Sign;
+
+import nl.anchormen.sql4es.model.ColumnStore;
+
+/**
+ * An {@link ICalculation} tree compiled into a flat postfix program which is evaluated on the primitive values
+ * of a {@link ColumnStore}. Evaluation uses a preallocated stack of doubles so calculating a row does not
+ * create any objects. Just like {@link ColumnReference} a reference to a row outside the store results in NaN,
+ * so do NULL values.
+ * A program is not thread safe as the stack is reused between evaluations.
+ *
+ * @author cversloot
+ *
+ */
+public class CalculationProgram {
+
+	private static final int CONSTANT = 0;
+	private static final int COLUMN = 1;
+	private static final int ADD = 2;
+	private static final int SUBTRACT = 3;
+	private static final int MULTIPLY = 4;
+	private static final int DIVIDE = 5;
+	private static final int MODULUS = 6;
+	private static final int NEGATE = 7;
+
+	private final int[] code;
+	private final int[] columns;
+	private final int[] offsets;
+	private final double[] constants;
+	private final double[] stack;
+
+	private CalculationProgram(List<Instruction> program, int maxDepth){
+		int length = program.size();
+		this.code = new int[length];
+		this.columns = new int[length];
+		this.offsets = new int[length];
+		this.constants = new double[length];
+		for(int i=0; i<length; i++){
+			Instruction instruction = program.get(i);
+			code[i] = instruction.code;
+			columns[i] = instruction.column;
+			offsets[i] = instruction.offset;
+			constants[i] = instruction.constant;
+		}
+		this.stack = new double[Math.max(1, maxDepth)];
+	}
+
+	/**
+	 * Compiles the provided calculation. Column references are resolved to the indexes their columns have
+	 * at this moment.
+	 * @param calculation
+	 * @return
+	 */
+	public static CalculationProgram compile(ICalculation calculation){
+		List<Instruction> program = new ArrayList<Instruction>();
+		int depth = compile(calculation, program);
+		return new CalculationProgram(program, depth);
+	}
+
+	/**
+	 * Adds the instructions for the provided calculation to the program (post order)
+	 * @param calc
+	 * @param program
+	 * @return the stack depth required to evaluate the calculation
+	 */
+	private static int compile(ICalculation calc, List<Instruction> program){
+		if(calc instanceof SingleValue){
+			program.add(new Instruction(CONSTANT, -1, 0, ((SingleValue)calc).getValue().doubleValue()));
+			return 1;
+		}else if(calc instanceof ColumnReference){
+			ColumnReference ref = (ColumnReference)calc;
+			program.add(new Instruction(COLUMN, ref.getColumn().getIndex(), ref.getOffset(), 0));
+			if(ref.getSign() == Sign.MINUS) program.add(new Instruction(NEGATE, -1, 0, 0));
+			return 1;
+		}else if(calc instanceof SimpleCalculation){
+			SimpleCalculation sc = (SimpleCalculation)calc;
+			int left = compile(sc.left(), program);
+			int right = compile(sc.right(), program);
+			switch(sc.getType()){
+				case ADD: program.add(new Instruction(ADD, -1, 0, 0)); break;
+				case DIVIDE: program.add(new Instruction(DIVIDE, -1, 0, 0)); break;
+				case MODULUS: program.add(new Instruction(MODULUS, -1, 0, 0)); break;
+				case MULTIPLY: program.add(new Instruction(MULTIPLY, -1, 0, 0)); break;
+				default: program.add(new Instruction(SUBTRACT, -1, 0, 0));
+			}
+			if(sc.getSign() == Sign.MINUS) program.add(new Instruction(NEGATE, -1, 0, 0));
+			return Math.max(left, right + 1);
+		}
+		throw new IllegalArgumentException("Unable to compile calculation of type "+calc.getClass().getName());
+	}
+
+	/**
+	 * Evaluates this program for the specified row
+	 * @param store
+	 * @param row
+	 * @return
+	 */
+	public double evaluate(ColumnStore store, int row){
+		int top = -1;
+		int size = store.size();
+		for(int i=0; i<code.length; i++){
+			switch(code[i]){
+				case CONSTANT: stack[++top] = constants[i]; break;
+				case COLUMN:
+					int r = row + offsets[i];
+					if(r < 0 || r >= size || store.isNull(r, columns[i])) stack[++top] = Double.NaN;
+					else stack[++top] = store.getDouble(r, columns[i]);
+					break;
+				case ADD: top--; stack[top] = stack[top] + stack[top+1]; break;
+				case SUBTRACT: top--; stack[top] = stack[top] - stack[top+1]; break;
+				case MULTIPLY: top--; stack[top] = stack[top] * stack[top+1]; break;
+				case DIVIDE: top--; stack[top] = stack[top] / stack[top+1]; break;
+				case MODULUS: top--; stack[top] = stack[top] % stack[top+1]; break;
+				case NEGATE: stack[top] = -stack[top]; break;
+			}
+		}
+		return stack[0];
+	}
+
+	private static class Instruction {
+
+		private final int code;
+		private final int column;
+		private final int offset;
+		private final double constant;
+
+		private Instruction(int code, int column, int offset, double constant){
+			this.code = code;
+			this.column = column;
+			this.offset = offset;
+			this.constant = constant;
+		}
+	}
+}
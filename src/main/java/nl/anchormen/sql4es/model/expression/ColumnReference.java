@@ -1,6 +1,7 @@
 package nl.anchormen.sql4es.model.expression;
 
 import java.util.List;
+import java.util.Map;
 
 import com.facebook.presto.sql.tree.ArithmeticUnaryExpression.Sign;
 
@@ -39,6 +40,14 @@ public class ColumnReference implements ICalculation{
 		return column;
 	}
 	
+	public int getOffset(){
+		return offset;
+	}
+	
+	public Sign getSign(){
+		return sign;
+	}
+	
 	public String toString(){
 		return column.getFullName();
 	}
@@ -48,4 +57,11 @@ public class ColumnReference implements ICalculation{
 		this.sign = sign;
 	}
 	
+	@Override
+	public ICalculation copy(Map<Column, Column> columns) {
+		ColumnReference copy = new ColumnReference(column.copy(columns), offset);
+		copy.setSign(sign);
+		return copy;
+	}
+	
 }
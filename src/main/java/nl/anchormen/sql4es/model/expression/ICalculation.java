@@ -1,8 +1,11 @@
 package nl.anchormen.sql4es.model.expression;
 
+import java.util.Map;
+
 import com.facebook.presto.sql.tree.ArithmeticUnaryExpression.Sign;
 
 import nl.anchormen.sql4es.ESResultSet;
+import nl.anchormen.sql4es.model.Column;
 
 public interface ICalculation {
 
@@ -10,4 +13,11 @@ public interface ICalculation {
 	
 	public void setSign(Sign sign);
 	
+	/**
+	 * Copies this calculation, referring to the copies of the columns it uses
+	 * @param columns the copies made so far (by identity), copies of other columns are added to it
+	 * @return
+	 */
+	public ICalculation copy(Map<Column, Column> columns);
+	
 }
@@ -2,9 +2,19 @@ package nl.anchormen.sql4es.model.expression;
 
 import java.sql.SQLException;
 import java.util.List;
+import java.util.Map;
+
+import nl.anchormen.sql4es.model.Column;
 
 public interface IComparison {
 
 	public boolean evaluate(List<Object> row) throws SQLException;
 	
+	/**
+	 * Copies this comparison, referring to the copies of the columns it uses
+	 * @param columns the copies made so far (by identity), copies of other columns are added to it
+	 * @return
+	 */
+	public IComparison copy(Map<Column, Column> columns);
+	
 }
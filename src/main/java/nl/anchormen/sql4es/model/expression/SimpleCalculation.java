@@ -1,10 +1,13 @@
 package nl.anchormen.sql4es.model.expression;
 
+import java.util.Map;
+
 import com.facebook.presto.sql.tree.ArithmeticBinaryExpression;
 import com.facebook.presto.sql.tree.ArithmeticBinaryExpression.Type;
 import com.facebook.presto.sql.tree.ArithmeticUnaryExpression.Sign;
 
 import nl.anchormen.sql4es.ESResultSet;
+import nl.anchormen.sql4es.model.Column;
 
 public class SimpleCalculation implements ICalculation {
 
@@ -25,6 +28,13 @@ public class SimpleCalculation implements ICalculation {
 		this.sign = sign;
 	}
 	
+	@Override
+	public ICalculation copy(Map<Column, Column> columns) {
+		SimpleCalculation copy = new SimpleCalculation(left.copy(columns), right.copy(columns), type);
+		copy.setSign(sign);
+		return copy;
+	}
+	
 	@Override
 	public Number evaluate(ESResultSet rs, int rowNr) {
 		Number l = left.evaluate(rs, rowNr);
@@ -48,6 +58,14 @@ public class SimpleCalculation implements ICalculation {
 		return right;
 	}
 	
+	public Type getType(){
+		return type;
+	}
+	
+	public Sign getSign(){
+		return sign;
+	}
+	
 	public String toString(){
 		return (sign == Sign.MINUS ? " -" : " ")+"( "+left+" "+type+" "+right+") ";
 	}
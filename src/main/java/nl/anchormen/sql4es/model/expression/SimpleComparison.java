@@ -2,6 +2,7 @@ package nl.anchormen.sql4es.model.expression;
 
 import java.sql.SQLException;
 import java.util.List;
+import java.util.Map;
 
 import com.facebook.presto.sql.tree.ComparisonExpression;
 import com.facebook.presto.sql.tree.ComparisonExpression.Type;
@@ -29,6 +30,29 @@ public class SimpleComparison implements IComparison{
 		this.rightColumn = rightColumn;
 	}
 
+	@Override
+	public IComparison copy(Map<Column, Column> columns) {
+		// the right value is taken from the first row when comparing two columns, it is not copied
+		if(rightColumn != null) return new SimpleComparison(leftColumn.copy(columns), comparisonType, rightColumn.copy(columns));
+		return new SimpleComparison(leftColumn.copy(columns), comparisonType, rightValue);
+	}
+	
+	public Column getLeftColumn() {
+		return leftColumn;
+	}
+
+	public Type getComparisonType() {
+		return comparisonType;
+	}
+
+	public Number getRightValue() {
+		return rightValue;
+	}
+
+	public Column getRightColumn() {
+		return rightColumn;
+	}
+
 	public String toString(){
 		return leftColumn.getFullName()+" "+comparisonType+" "+rightValue +" ("+rightValue.getClass().getSimpleName()+")";
 	}
@@ -1,8 +1,11 @@
 package nl.anchormen.sql4es.model.expression;
 
+import java.util.Map;
+
 import com.facebook.presto.sql.tree.ArithmeticUnaryExpression.Sign;
 
 import nl.anchormen.sql4es.ESResultSet;
+import nl.anchormen.sql4es.model.Column;
 
 public class SingleValue implements ICalculation{
 
@@ -21,11 +24,20 @@ public class SingleValue implements ICalculation{
 		if(sign == Sign.MINUS) this.value = value.doubleValue() * -1;
 	}
 
+	@Override
+	public ICalculation copy(Map<Column, Column> columns) {
+		return new SingleValue(value);
+	}
+
 	@Override
 	public Number evaluate(ESResultSet result, int rowNr){
 		return this.value;
 	}
 
+	public Number getValue(){
+		return value;
+	}
+	
 	public String toString(){
 		return ""+value;
 	}
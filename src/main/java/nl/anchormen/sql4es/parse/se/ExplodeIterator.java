@@ -0,0 +1,91 @@
+package nl.anchormen.sql4es.parse.se;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import nl.anchormen.sql4es.model.Column;
+import nl.anchormen.sql4es.model.Heading;
+
+/**
+ * Produces the lateral view of a row containing nested objects one row at a time. Each row returned is a 
+ * combination of the parent row with one row of every set of nested objects, all combinations are returned.
+ * The combinations are not materialized, a cursor is kept per set of nested objects and advanced like an 
+ * odometer. The same row instance is returned on every call to {@link #next()} and is only valid until the 
+ * next call.
+ *
+ * @author cversloot
+ *
+ */
+public class ExplodeIterator implements Iterator<List<Object>> {
+
+	private final List<Object> base;
+	private final int[] columns;
+	private final NestedRows[] nested;
+	private final int[][] destinations;
+	private final int[] position;
+	private final GrowingRow row;
+	private boolean hasNext = true;
+
+	/**
+	 * Creates the iterator for the provided row, adding columns for all nested fields to the heading if 
+	 * they do not exist yet.
+	 * @param head the heading of the row
+	 * @param base the row containing {@link NestedRows} (none of them empty) in the provided columns
+	 * @param nestedColumns the indexes of the columns containing nested rows
+	 */
+	public ExplodeIterator(Heading head, List<Object> base, List<Integer> nestedColumns){
+		this.base = base;
+		this.columns = new int[nestedColumns.size()];
+		this.nested = new NestedRows[columns.length];
+		this.destinations = new int[columns.length][];
+		this.position = new int[columns.length];
+		for(int i=0; i<columns.length; i++){
+			columns[i] = nestedColumns.get(i);
+			nested[i] = (NestedRows)base.get(columns[i]);
+			String parent = head.getColumn(columns[i]).getColumn();
+			Heading nestedHead = nested[i].getHeading();
+			destinations[i] = new int[nestedHead.getColumnCount()];
+			for(Column nestedCol : nestedHead.columns()){
+				String nestedColName = parent+"."+nestedCol.getColumn();
+				Column destinationCol = head.getColumnByLabel(nestedColName);
+				if(destinationCol == null){
+					destinationCol = new Column(nestedColName).setAlias(nestedCol.getAlias())
+							.setSqlType(nestedCol.getSqlType()).setVisible(nestedCol.isVisible());
+					head.add(destinationCol);
+				}
+				destinations[i][nestedCol.getIndex()] = destinationCol.getIndex();
+			}
+		}
+		this.row = new GrowingRow(head.getColumnCount());
+	}
+
+	@Override
+	public boolean hasNext() {
+		return hasNext;
+	}
+
+	@Override
+	public List<Object> next() {
+		if(!hasNext) throw new NoSuchElementException();
+		for(int c=0; c<base.size(); c++) row.set(c, base.get(c));
+		for(int i=0; i<columns.length; i++){
+			row.set(columns[i], null);
+			List<Object> nestedRow = nested[i].getRow(position[i]);
+			for(int c=0; c<destinations[i].length; c++) row.set(destinations[i][c], nestedRow.get(c));
+		}
+		// advance the cursors, the first set of nested objects changes fastest
+		int i = 0;
+		for(; i<position.length; i++){
+			if(++position[i] < nested[i].size()) break;
+			position[i] = 0;
+		}
+		if(i == position.length) hasNext = false;
+		return row;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,49 @@
+package nl.anchormen.sql4es.parse.se;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A row used while parsing documents which grows when values are set beyond its current size. This avoids 
+ * having to allocate rows with a large default length because the number of columns of a heading can increase 
+ * while documents are being parsed (like SELECT *). Getting a value beyond the size of the row returns NULL.
+ *
+ * @author cversloot
+ *
+ */
+public class GrowingRow extends AbstractList<Object> {
+
+	private Object[] values;
+	private int size = 0;
+
+	public GrowingRow(int capacity){
+		this.values = new Object[Math.max(capacity, 4)];
+	}
+
+	public GrowingRow(List<Object> row){
+		this(row.size());
+		for(int i=0; i<row.size(); i++) values[i] = row.get(i);
+		this.size = row.size();
+	}
+
+	@Override
+	public Object get(int index) {
+		if(index >= size) return null;
+		return values[index];
+	}
+
+	@Override
+	public Object set(int index, Object value){
+		if(index >= values.length) values = Arrays.copyOf(values, Math.max(index + 1, values.length * 2));
+		if(index >= size) size = index + 1;
+		Object old = values[index];
+		values[index] = value;
+		return old;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+}
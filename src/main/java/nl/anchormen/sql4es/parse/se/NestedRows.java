@@ -0,0 +1,45 @@
+package nl.anchormen.sql4es.parse.se;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.anchormen.sql4es.model.Heading;
+
+/**
+ * Holds the (already exploded) rows parsed from a set of nested objects within a document. Used instead of
+ * a nested {@link nl.anchormen.sql4es.ESResultSet} when nested objects are exploded into the rows of their parent
+ * because the nested rows are never presented to the client directly.
+ *
+ * @author cversloot
+ *
+ */
+public class NestedRows {
+
+	private final Heading heading;
+	private final List<List<Object>> rows;
+
+	public NestedRows(Heading heading, int capacity){
+		this.heading = heading;
+		this.rows = new ArrayList<List<Object>>(capacity);
+	}
+
+	/**
+	 * Adds a copy of the provided row
+	 * @param row
+	 */
+	public void add(List<Object> row){
+		rows.add(new GrowingRow(row));
+	}
+
+	public Heading getHeading(){
+		return heading;
+	}
+
+	public List<Object> getRow(int index){
+		return rows.get(index);
+	}
+
+	public int size(){
+		return rows.size();
+	}
+}
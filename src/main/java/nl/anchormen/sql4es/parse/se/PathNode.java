@@ -0,0 +1,97 @@
+package nl.anchormen.sql4es.parse.se;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import nl.anchormen.sql4es.model.Heading;
+
+/**
+ * A node within the trie of field paths that must be read from the documents in a result. The trie is built
+ * once per query from the heading index (see {@link SearchHitParser#buildHeaders(Heading)}) and is used to walk
+ * a document's source key by key without concatenating paths or looking up full paths for every hit.
+ * Each node holds the {@link Heading} used for the object found at its path. Nodes for objects within a
+ * part of the document that is read completely (like SELECT *) are added the first time they are encountered.
+ *
+ * @author cversloot
+ *
+ */
+public class PathNode {
+
+	private final String path;
+	private Heading heading;
+	private final Map<String, PathNode> children = new HashMap<String, PathNode>();
+
+	private PathNode(String path, Heading heading){
+		this.path = path;
+		this.heading = heading;
+	}
+
+	/**
+	 * Builds the trie for the provided heading index
+	 * @param headMap the heading index built by {@link SearchHitParser#buildHeaders(Heading)}
+	 * @return the root of the trie
+	 */
+	public static PathNode build(Map<String, Heading> headMap){
+		PathNode root = new PathNode("", headMap.get(""));
+		for(String path : headMap.keySet()){
+			if(path.length() == 0) continue;
+			PathNode node = root;
+			String[] keys = path.split("\\.");
+			for(int i=0; i<keys.length; i++){
+				PathNode child = node.children.get(keys[i]);
+				if(child == null){
+					String childPath = node.path.length() > 0 ? node.path+"."+keys[i] : keys[i];
+					child = new PathNode(childPath, headMap.get(childPath));
+					node.children.put(keys[i], child);
+				}
+				node = child;
+			}
+		}
+		return root;
+	}
+
+	/**
+	 * @return true if all fields of the object at this path must be read
+	 */
+	public boolean followAll(){
+		return heading == null || heading.hasAllCols();
+	}
+
+	/**
+	 * Returns true if the (non object) value with the provided key must be read
+	 * @param key
+	 * @return
+	 */
+	public boolean follows(String key){
+		return children.containsKey(key) || followAll();
+	}
+
+	/**
+	 * Returns the node for the object with the provided key or NULL if it must not be read
+	 * @param key
+	 * @return
+	 */
+	public PathNode child(String key){
+		PathNode child = children.get(key);
+		if(child == null && followAll()){
+			child = new PathNode(path.length() > 0 ? path+"."+key : key, null);
+			children.put(key, child);
+		}
+		return child;
+	}
+
+	/**
+	 * @return the full path of this node like a.b.c
+	 */
+	public String getPath(){
+		return path;
+	}
+
+	/**
+	 * @return the heading used for objects found at this path
+	 */
+	public Heading getHeading(){
+		if(heading == null) heading = new Heading().setAllColls(true);
+		return heading;
+	}
+}
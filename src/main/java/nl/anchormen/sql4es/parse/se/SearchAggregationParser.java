@@ -1,12 +1,19 @@
 package nl.anchormen.sql4es.parse.se;
 
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.List;
 
 import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
 import org.elasticsearch.search.aggregations.bucket.filter.InternalFilter;
-import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.elasticsearch.search.aggregations.metrics.InternalNumericMetricsAggregation;
+import org.elasticsearch.search.aggregations.metrics.cardinality.Cardinality;
+import org.elasticsearch.search.aggregations.metrics.percentiles.PercentileRanks;
+import org.elasticsearch.search.aggregations.metrics.percentiles.Percentiles;
+import org.elasticsearch.search.aggregations.metrics.stats.Stats;
+import org.elasticsearch.search.aggregations.metrics.stats.extended.ExtendedStats;
+import org.joda.time.DateTime;
 
 import nl.anchormen.sql4es.ESResultSet;
 import nl.anchormen.sql4es.model.Column;
@@ -27,44 +34,52 @@ public class SearchAggregationParser {
 	 * @throws SQLException
 	 */
 	public void parseAggregation(Aggregation agg, ESResultSet rs) throws SQLException{
-		if(agg instanceof Terms){
-			dfsAggregations((Terms)agg, rs, rs.getNewRow());
+		if(agg instanceof MultiBucketsAggregation){
+			dfsAggregations((MultiBucketsAggregation)agg, rs, rs.getNewRow());
 		}else if (agg instanceof InternalFilter){
 			processFilterAgg((InternalFilter)agg, rs);
 		}else throw new SQLException ("Unknown aggregation type "+agg.getClass().getName());
 	}
 	
 	/**
-	 * Parse an aggregation result based on one or more aggregated terms
+	 * Parse an aggregation result based on one or more aggregated terms or (date) histograms
 	 * @param terms
 	 * @param rs
 	 * @param row
 	 * @throws SQLException
 	 */
-	private void dfsAggregations(Terms terms, ESResultSet rs, List<Object> row) throws SQLException{
+	private void dfsAggregations(MultiBucketsAggregation terms, ESResultSet rs, List<Object> row) throws SQLException{
 		List<Object> currentRow = Utils.clone(row);
 		String columnName = terms.getName();
 		if(!rs.getHeading().hasLabel(columnName)) throw new SQLException("Unable to identify column for aggregation named "+columnName);
 		Column aggCol = rs.getHeading().getColumnByLabel(columnName);
-		for(Terms.Bucket bucket : terms.getBuckets()){
+		for(MultiBucketsAggregation.Bucket bucket : terms.getBuckets()){
 			boolean metricAggs = false;
+			Object key = bucketKey(bucket);
 			List<Aggregation> aggs = bucket.getAggregations().asList();
 			if(aggs.size() == 0){
-				currentRow.set(aggCol.getIndex(), bucket.getKey());
+				currentRow.set(aggCol.getIndex(), key);
 				metricAggs = true;
 			}else for(Aggregation agg : bucket.getAggregations().asList()){
-				if(agg instanceof Terms){
-					currentRow.set(aggCol.getIndex(), bucket.getKey());
-					dfsAggregations((Terms)agg, rs, currentRow);
+				if(agg instanceof MultiBucketsAggregation){
+					currentRow.set(aggCol.getIndex(), key);
+					dfsAggregations((MultiBucketsAggregation)agg, rs, currentRow);
 				}else{
 					if(metricAggs == false){
-						currentRow.set(aggCol.getIndex(), bucket.getKey());
+						currentRow.set(aggCol.getIndex(), key);
 						metricAggs = true;
 					}
+					if(agg instanceof Stats){
+						fanOutStats((Stats)agg, rs, currentRow);
+						continue;
+					}else if(agg instanceof Percentiles || agg instanceof PercentileRanks){
+						fanOutPercentiles(agg, rs, currentRow);
+						continue;
+					}
 					String metricName = agg.getName();
 					if(!rs.getHeading().hasLabel(metricName)) throw new SQLException("Unable to identify column for aggregation named "+metricName);
 					Column metricCol = rs.getHeading().getColumnByLabel(metricName);
-					currentRow.set(metricCol.getIndex(), agg.getProperty("value"));
+					currentRow.set(metricCol.getIndex(), metricValue(agg));
 				}
 			}
 			if(metricAggs){
@@ -92,7 +107,11 @@ public class SearchAggregationParser {
 			row.set(count.getIndex(), filter.getDocCount());
 		}
 		for(Aggregation agg : filter.getAggregations()){
-			if(agg instanceof InternalNumericMetricsAggregation.SingleValue){
+			if(agg instanceof Stats){
+				fanOutStats((Stats)agg, rs, row);
+			}else if(agg instanceof Percentiles || agg instanceof PercentileRanks){
+				fanOutPercentiles(agg, rs, row);
+			}else if(agg instanceof InternalNumericMetricsAggregation.SingleValue){
 				InternalNumericMetricsAggregation.SingleValue numericAgg = 
 						(InternalNumericMetricsAggregation.SingleValue)agg;
 				String name =numericAgg.getName();
@@ -100,10 +119,82 @@ public class SearchAggregationParser {
 				if(column == null){
 					throw new SQLException("Unable to identify column for "+name);
 				}
-				row.set(column.getIndex(), numericAgg.value());
+				row.set(column.getIndex(), metricValue(numericAgg));
 			}else throw new SQLException("Unable to parse aggregation of type "+agg.getClass());
 		}
 		rs.add(row);
 	}
 	
+	/**
+	 * Sets the values of all metric columns calculated by the provided stats (or extended_stats) aggregation
+	 * @param stats
+	 * @param rs
+	 * @param row
+	 * @throws SQLException
+	 */
+	private void fanOutStats(Stats stats, ESResultSet rs, List<Object> row) throws SQLException{
+		boolean found = false;
+		for(Column column : rs.getHeading().columns()){
+			if(column.hasCalculation() || !column.getStatsName().equals(stats.getName())) continue;
+			Object value;
+			switch(column.getOp()){
+				case AVG: value = stats.getAvg(); break;
+				case SUM: value = stats.getSum(); break;
+				case MIN: value = stats.getMin(); break;
+				case MAX: value = stats.getMax(); break;
+				case COUNT: 
+					// without GROUP BY the count is the document count of the filter
+					if(row.get(column.getIndex()) != null) continue;
+					value = stats.getCount(); break;
+				case STDDEV: value = ((ExtendedStats)stats).getStdDeviation(); break;
+				case VARIANCE: value = ((ExtendedStats)stats).getVariance(); break;
+				default: continue;
+			}
+			row.set(column.getIndex(), value);
+			found = true;
+		}
+		if(!found) throw new SQLException("Unable to identify columns for aggregation named "+stats.getName());
+	}
+	
+	/**
+	 * Sets the values of all columns calculated by the provided percentiles or percentile_ranks aggregation
+	 * @param agg
+	 * @param rs
+	 * @param row
+	 * @throws SQLException
+	 */
+	private void fanOutPercentiles(Aggregation agg, ESResultSet rs, List<Object> row) throws SQLException{
+		boolean found = false;
+		for(Column column : rs.getHeading().columns()){
+			if(column.hasCalculation() || !column.getStatsName().equals(agg.getName())) continue;
+			double argument = Double.parseDouble(column.getArgument());
+			if(column.getOp() == Operation.PERCENTILE) row.set(column.getIndex(), ((Percentiles)agg).percentile(argument));
+			else row.set(column.getIndex(), ((PercentileRanks)agg).percent(argument));
+			found = true;
+		}
+		if(!found) throw new SQLException("Unable to identify columns for aggregation named "+agg.getName());
+	}
+	
+	/**
+	 * Returns the key of the bucket, keys of date histograms are returned as {@link Timestamp}
+	 * @param bucket
+	 * @return
+	 */
+	private Object bucketKey(MultiBucketsAggregation.Bucket bucket){
+		Object key = bucket.getKey();
+		if(key instanceof DateTime) return new Timestamp(((DateTime)key).getMillis());
+		return key;
+	}
+	
+	/**
+	 * Returns the value of a single value metric aggregation. Distinct counts are returned as long
+	 * to match the BIGINT type of their column.
+	 * @param agg
+	 * @return
+	 */
+	private Object metricValue(Aggregation agg){
+		if(agg instanceof Cardinality) return ((Cardinality)agg).getValue();
+		return agg.getProperty("value");
+	}
+	
 }
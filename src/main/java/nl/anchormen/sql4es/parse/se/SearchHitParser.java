@@ -3,12 +3,15 @@ package nl.anchormen.sql4es.parse.se;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 import org.elasticsearch.common.text.Text;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
 import org.elasticsearch.search.SearchHits;
 import org.elasticsearch.search.highlight.HighlightField;
 
@@ -16,7 +19,6 @@ import nl.anchormen.sql4es.ESArray;
 import nl.anchormen.sql4es.ESResultSet;
 import nl.anchormen.sql4es.model.Column;
 import nl.anchormen.sql4es.model.Heading;
-import nl.anchormen.sql4es.model.Utils;
 import nl.anchormen.sql4es.model.Column.Operation;
 
 /**
@@ -34,29 +36,64 @@ import nl.anchormen.sql4es.model.Column.Operation;
  */
 public class SearchHitParser {
 	
+	private final SourceDecoder decoder = new SourceDecoder();
+	
 	/**
 	 * Parses the SearchHits portion of an elasticsearch search result.
 	 * @param hits
-	 * @param rs
+	 * @param head
+	 * @param index the field trie built using {@link #buildIndex(Heading)} for the heading
 	 * @throws SQLException 
 	 */
-	public ESResultSet parse(SearchHits hits, Heading head, long total, int rowLength, boolean useLateral, long offset) throws SQLException{
-		Map<String, Heading> headMap = buildHeaders(head);
-
+	public ESResultSet parse(SearchHits hits, Heading head, PathNode index, long total, int rowLength, boolean useLateral, long offset) throws SQLException{
 		ESResultSet rs = new ESResultSet(head, (int)total, rowLength);
 		rs.setOffset((int)offset);
 		for(SearchHit hit : hits){
-			this.parse(hit.getSource(), hit, rs, useLateral, "", headMap);
+			Iterator<List<Object>> rows = this.parse(hit, head, useLateral, index);
+			while(rows.hasNext()) rs.add(rows.next());
 		}
-		
+		fixVisibility(rs.getHeading(), useLateral);
+		return rs;
+	}
+	
+	/**
+	 * Parses a single hit into one or more rows (depending on exploding nested objects). The rows are produced 
+	 * by the returned iterator while it is consumed and must be copied (or added to a resultset) before requesting 
+	 * the next one. Used to convert hits one at a time instead of a full page.
+	 * @param hit
+	 * @param head the heading of the resultset the rows are for
+	 * @param useLateral
+	 * @param index the field trie built using {@link #buildIndex(Heading)}
+	 * @throws SQLException
+	 */
+	public Iterator<List<Object>> parse(SearchHit hit, Heading head, boolean useLateral, PathNode index) throws SQLException{
+		return this.parse(decoder.decode(hit, index), hit, head, useLateral, index);
+	}
+	
+	/**
+	 * Builds the trie of field paths to read from the documents for the provided heading. The trie
+	 * can be reused for all hits (and pages) of the query the heading belongs to.
+	 * @param heading
+	 * @return
+	 */
+	public PathNode buildIndex(Heading heading){
+		return PathNode.build(buildHeaders(heading));
+	}
+	
+	/**
+	 * Hides columns which should not be presented to the client. When using lateral view the parents of
+	 * exploded nested objects are hidden, otherwise all nested fields are hidden.
+	 * @param heading
+	 * @param useLateral
+	 */
+	public void fixVisibility(Heading heading, boolean useLateral){
 		if(useLateral){
-			for(Column col : rs.getHeading().columns())
-				if(rs.getHeading().hasLabelStartingWith(col.getColumn()+".")) col.setVisible(false);
+			for(Column col : heading.columns())
+				if(heading.hasLabelStartingWith(col.getColumn()+".")) col.setVisible(false);
 		}else{
-			for(Column col : rs.getHeading().columns())
+			for(Column col : heading.columns())
 				if(col.getColumn().contains(".") ) col.setVisible(false);
 		}
-		return rs;
 	}
 	
 	/**
@@ -67,9 +104,17 @@ public class SearchHitParser {
 	 */
 	public Map<String, Heading> buildHeaders( Heading heading ){
 		Map<String, Heading> headingIndex = new HashMap<String, Heading>();
-		for(int i=0; i<100; i++){
-			col: for(Column col : heading.columns()){
-				String[] parentAndKey = parentKey(col.getColumn(), i);
+		// split all column names once, the index is built level by level
+		List<String[]> columnParts = new ArrayList<String[]>(heading.getColumnCount());
+		int depth = 0;
+		for(Column col : heading.columns()){
+			String[] parts = col.getColumn().split("\\.");
+			columnParts.add(parts);
+			depth = Math.max(depth, parts.length);
+		}
+		for(int i=0; i<=depth; i++){
+			col: for(String[] parts : columnParts){
+				String[] parentAndKey = parentKey(parts, i);
 				if(parentAndKey == null) continue;
 				Heading subH = headingIndex.get(parentAndKey[0]);
 				if(subH == null){
@@ -93,12 +138,11 @@ public class SearchHitParser {
 	
 	/**
 	 * Splits a name formatted like a.b.c into a parent 'a.b' and key 'c' for a given index (2 in this example)
-	 * @param name
+	 * @param parts the name split on '.'
 	 * @param idx
 	 * @return
 	 */
-	private String[] parentKey(String name, int idx) {
-		String[] parts = name.split("\\.");
+	private String[] parentKey(String[] parts, int idx) {
 		if(idx > parts.length) return null;
 		String parent = "";
 		String key = null;
@@ -110,29 +154,35 @@ public class SearchHitParser {
 	}
 
 	/**
-	 * Parses the provided source and puts the elements in a row within the {@link ESResultSet}
+	 * Parses the provided source into a row, when exploding nested objects an iterator producing all
+	 * combinations of the row with its nested objects is returned.
 	 * @param source
-	 * @param rs
+	 * @param head
 	 * @throws SQLException 
 	 */
 	//new Object[]{hit.getId(), hit.getIndex(), hit.getType(), hit.getScore(), hit.getHighlightFields()}
 	@SuppressWarnings("unchecked")
-	private void parse(Map<String, ?> source, SearchHit hit, ESResultSet rs, boolean explode, String parent, Map<String, Heading> headMap) throws SQLException{
-		Heading head = rs.getHeading();
-		List<Object> row = rs.getNewRow();
-		if(hit != null) addIdIndexAndType(hit.getId(), hit.getIndex(), hit.getType(), hit.getScore(), hit.getHighlightFields(), head, row);
-		for(String key : source.keySet()){
-			String fullKey = parent.length()>0 ? parent+"."+key : key;
-
-			if(!headMap.containsKey(fullKey) && !head.hasAllCols()) continue;
+	private Iterator<List<Object>> parse(Map<String, ?> source, SearchHit hit, Heading head, boolean explode, PathNode node) throws SQLException{
+		List<Object> row = new GrowingRow(head.getColumnCount());
+		if(hit != null) {
+			addIdIndexAndType(hit.getId(), hit.getIndex(), hit.getType(), hit.getScore(), hit.getHighlightFields(), head, row);
+			addFields(hit.getFields(), head, row);
+		}
+		if(source != null) for(Map.Entry<String, ?> entry : source.entrySet()){ // source is null when it was not requested
+			String key = entry.getKey();
+			Object value = entry.getValue();
 			
-			if( source.get(key) instanceof Map ){
-				parseMapIntoResultSet(key, head, row, explode, fullKey, headMap, (Map<String, ?>)source.get(key));
-			}else if(source.get(key) instanceof List) {
-				List<Object> list = (List<Object>)source.get(key);
+			if( value instanceof Map ){
+				PathNode child = node.child(key);
+				if(child == null) continue;
+				parseMapIntoResultSet(key, head, row, explode, child, (Map<String, ?>)value);
+			}else if(!node.follows(key)){
+				continue;
+			}else if(value instanceof List) {
+				List<Object> list = (List<Object>)value;
 				if(list.size() > 0){
 					if(list.get(0) instanceof Map){
-						parseMapIntoResultSet(key, head, row, explode, fullKey, headMap, list.toArray());
+						parseMapIntoResultSet(key, head, row, explode, node.child(key), list.toArray());
 					}else{
 						if(head.hasLabel(key)){
 							Column s = head.getColumnByLabel(key);
@@ -151,70 +201,23 @@ public class SearchHitParser {
 					}
 				}
 			}else{
-				addValueToRow(key, source.get(key), head, row);
+				addValueToRow(key, value, head, row);
 			}
 		}
 		if(explode){
-			List<List<Object>> rows = explodeRow(head, row);
-			for(List<Object> exRow : rows) rs.add(exRow);
-		}else{
-			rs.add(row);
-		}
-	}
-	
-
-	/**
-	 * Explodes any nested objects within the provided row. This produces multiple rows, each
-	 * with a different combination of nested information.
-	 * @param row
-	 * @param heading
-	 * @return
-	 * @throws SQLException 
-	 */
-	private List<List<Object>> explodeRow(Heading head, List<Object> row) throws SQLException {
-		List<List<Object>> rows = new ArrayList<List<Object>>();
-		rows.add(row);
-		for(int ri=0; ri<head.getColumnCount(); ri++){
-			if(!head.getColumn(ri).isVisible()) continue;
-
-			Object element = row.get(ri);
-			if(element instanceof ESResultSet){
-				ESResultSet nested = (ESResultSet)element;
-				String parent = head.getColumn(ri).getColumn();
-				
-				long nestedCount = nested.getTotal(); 
-				if(nestedCount == 0) {
-					nested.close();
-					continue;
-				}
-				
-				// add rows to hold the nested data
-				int rowCount = rows.size();
-				for(int n=0; n<nestedCount-1; n++) 
-					for(int i=0; i<rowCount; i++) rows.add(Utils.clone(rows.get(i)));
-				
-				// now add a nested row to each of the rows in the final resultset
-				for(int i=0; i<rows.size(); i++){
-					List<Object> destinationRow = rows.get(i);
-					List<Object> nestedRow = nested.getRow(i%(int)nestedCount);
-					for(Column nestedCol : nested.getHeading().columns()){
-						String nestedColName = parent+"."+nestedCol.getColumn();
-						
-						Column destinationCol = head.getColumnByLabel(nestedColName);
-						if(destinationCol == null){
-							destinationCol = new Column(nestedColName).setAlias(nestedCol.getAlias())
-									.setSqlType(nestedCol.getSqlType()).setVisible(nestedCol.isVisible());
-							head.add(destinationCol);
-						}
-						Object value = nestedRow.get(nestedCol.getIndex());
-						destinationRow.set(destinationCol.getIndex(), value);
-					}
+			List<Integer> nestedColumns = null;
+			for(int c=0; c<row.size(); c++){
+				if(!(row.get(c) instanceof NestedRows)) continue;
+				if(((NestedRows)row.get(c)).size() == 0){
+					row.set(c, null);
+				}else{
+					if(nestedColumns == null) nestedColumns = new ArrayList<Integer>();
+					nestedColumns.add(c);
 				}
-				nested.close();
 			}
+			if(nestedColumns != null) return new ExplodeIterator(head, row, nestedColumns);
 		}
-		
-		return rows;
+		return Collections.singletonList(row).iterator();
 	}
 
 	/**
@@ -247,6 +250,26 @@ public class SearchHitParser {
 		}
 	}
 	
+	/**
+	 * Adds the fields returned outside of the _source (fielddata_fields) to the row. Single values are added as is, 
+	 * multiple values are added as an array just like lists within the _source.
+	 * @param fields
+	 * @param head
+	 * @param row
+	 */
+	private void addFields(Map<String, SearchHitField> fields, Heading head, List<Object> row){
+		if(fields == null) return;
+		for(SearchHitField field : fields.values()){
+			Column col = head.getColumnByLabel(field.getName());
+			if(col == null || field.getValues() == null || field.getValues().isEmpty()) continue;
+			if(field.getValues().size() == 1) row.set(col.getIndex(), field.getValue());
+			else{
+				col.setSqlType(Types.ARRAY);
+				row.set(col.getIndex(), new ESArray(field.getValues()));
+			}
+		}
+	}
+	
 	/**
 	 * Adds a single value to its correct place in the row 
 	 * @param key
@@ -267,8 +290,9 @@ public class SearchHitParser {
 	}
 	
 	/**
-	 * Parses the provided set of nested Objects (map<String, ?> ) into an ResultSet which is 
-	 * added to the row.
+	 * Parses the provided set of nested Objects (map<String, ?> ) which is added to the row. When exploding the
+	 * nested rows are kept as {@link NestedRows} to be combined with the row later, otherwise they are added 
+	 * as a ResultSet.
 	 * @param key
 	 * @param value
 	 * @param heading
@@ -276,21 +300,29 @@ public class SearchHitParser {
 	 * @throws SQLException 
 	 */
 	@SuppressWarnings("unchecked")
-	private void parseMapIntoResultSet(String key, Heading heading, List<Object> row, boolean explode, String parent, Map<String, Heading> headMap, Object... nestedObjects) throws SQLException{
-		Heading nestedHeading = headMap.get(parent);
-		if(nestedHeading == null) {
-			nestedHeading = new Heading().setAllColls(true);
-			headMap.put(parent, nestedHeading);
-		}
-		ESResultSet nestedRs = new ESResultSet(nestedHeading, nestedObjects.length, 1000);
-		for(Object object : nestedObjects){
-			parse((Map<String, ?>)object, null, nestedRs, explode, parent, headMap);
+	private void parseMapIntoResultSet(String key, Heading heading, List<Object> row, boolean explode, PathNode node, Object... nestedObjects) throws SQLException{
+		Heading nestedHeading = node.getHeading();
+		Object nested;
+		if(explode){
+			NestedRows nestedRows = new NestedRows(nestedHeading, nestedObjects.length);
+			for(Object object : nestedObjects){
+				Iterator<List<Object>> rows = parse((Map<String, ?>)object, null, nestedHeading, explode, node);
+				while(rows.hasNext()) nestedRows.add(rows.next());
+			}
+			nested = nestedRows;
+		}else{
+			ESResultSet nestedRs = new ESResultSet(nestedHeading, nestedObjects.length, nestedHeading.getColumnCount());
+			for(Object object : nestedObjects){
+				Iterator<List<Object>> rows = parse((Map<String, ?>)object, null, nestedHeading, explode, node);
+				while(rows.hasNext()) nestedRs.add(rows.next());
+			}
+			nested = nestedRs;
 		}
 		Column col = heading.getColumnByLabel(key);
 		if(col == null){
 			col = new Column(key).setSqlType(Types.JAVA_OBJECT);
 			heading.add(col);
 		}
-		row.set(col.getIndex(), nestedRs);
+		row.set(col.getIndex(), nested);
 	}
 }
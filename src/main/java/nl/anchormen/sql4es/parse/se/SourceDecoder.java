@@ -0,0 +1,107 @@
+package nl.anchormen.sql4es.parse.se;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchHit;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import nl.anchormen.sql4es.model.Heading;
+
+/**
+ * Decodes the _source of a {@link SearchHit} directly from its bytes using a Jackson streaming parser instead of
+ * letting elasticsearch build the full source map. Only the fields present in the field trie
+ * (see {@link SearchHitParser#buildIndex(Heading)}) are decoded, all other subtrees are skipped without creating
+ * any objects for them. Values are decoded into the same types elasticsearch would use so the result can be
+ * parsed just like the map returned by {@link SearchHit#getSource()}.
+ *
+ * @author cversloot
+ *
+ */
+public class SourceDecoder {
+
+	private static final JsonFactory factory = new JsonFactory();
+
+	/**
+	 * Decodes the source of the provided hit
+	 * @param hit
+	 * @param index the root of the field trie used to determine which fields must be read
+	 * @return the (partial) source or null if the hit does not have a source
+	 * @throws SQLException
+	 */
+	public Map<String, ?> decode(SearchHit hit, PathNode index) throws SQLException{
+		BytesReference source = hit.sourceRef();
+		if(source == null) return null;
+		// documents indexed as smile, yaml or cbor are left to elasticsearch
+		if(XContentFactory.xContentType(source) != XContentType.JSON) return hit.getSource();
+		try (JsonParser parser = source.hasArray() ? factory.createParser(source.array(), source.arrayOffset(), source.length())
+				: factory.createParser(source.streamInput())){
+			if(parser.nextToken() != JsonToken.START_OBJECT) throw new SQLException("Source of document "+hit.getId()+" is not an object");
+			return readObject(parser, index);
+		} catch (IOException e) {
+			throw new SQLException("Unable to decode source of document "+hit.getId()+" due to: "+e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Reads the object the parser is positioned on (just after START_OBJECT) into a map skipping any fields
+	 * that are not requested.
+	 * @param parser
+	 * @param node the trie node of the object being read
+	 * @return
+	 * @throws IOException
+	 */
+	private Map<String, Object> readObject(JsonParser parser, PathNode node) throws IOException{
+		Map<String, Object> result = new HashMap<String, Object>();
+		while(parser.nextToken() == JsonToken.FIELD_NAME){
+			String key = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if(token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY){
+				PathNode child = node.child(key);
+				if(child == null) parser.skipChildren();
+				else result.put(key, readValue(parser, token, child));
+			}else if(node.follows(key)){
+				result.put(key, readValue(parser, token, node));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Reads the value for the provided token
+	 * @param parser
+	 * @param token
+	 * @param node the trie node of the value being read (objects and arrays) or of its parent
+	 * @return
+	 * @throws IOException
+	 */
+	private Object readValue(JsonParser parser, JsonToken token, PathNode node) throws IOException{
+		switch(token){
+			case START_OBJECT: return readObject(parser, node);
+			case START_ARRAY:
+				List<Object> list = new ArrayList<Object>();
+				for(JsonToken t = parser.nextToken(); t != JsonToken.END_ARRAY; t = parser.nextToken()){
+					list.add(readValue(parser, t, node));
+				}
+				return list;
+			case VALUE_STRING: return parser.getText();
+			case VALUE_NUMBER_INT:
+			case VALUE_NUMBER_FLOAT: return parser.getNumberValue();
+			case VALUE_TRUE: return Boolean.TRUE;
+			case VALUE_FALSE: return Boolean.FALSE;
+			case VALUE_NULL: return null;
+			case VALUE_EMBEDDED_OBJECT: return parser.getEmbeddedObject();
+			default: throw new IOException("Unexpected token "+token+" at "+node.getPath());
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package nl.anchormen.sql4es.parse.sql;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -8,7 +9,12 @@ import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.search.aggregations.AggregationBuilder;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
 import org.elasticsearch.search.aggregations.bucket.filter.FilterAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.elasticsearch.search.aggregations.bucket.terms.TermsBuilder;
+import org.elasticsearch.search.aggregations.metrics.ValuesSourceMetricsAggregationBuilder;
+import org.elasticsearch.search.aggregations.pipeline.having.BucketSelectorBuilder;
+import org.elasticsearch.search.sort.SortOrder;
 
 import com.facebook.presto.sql.tree.AstVisitor;
 import com.facebook.presto.sql.tree.Expression;
@@ -17,6 +23,7 @@ import com.facebook.presto.sql.tree.GroupingElement;
 import nl.anchormen.sql4es.QueryState;
 import nl.anchormen.sql4es.model.Column;
 import nl.anchormen.sql4es.model.Heading;
+import nl.anchormen.sql4es.model.OrderBy;
 import nl.anchormen.sql4es.model.Utils;
 import nl.anchormen.sql4es.model.Column.Operation;
 
@@ -28,7 +35,15 @@ import nl.anchormen.sql4es.model.Column.Operation;
  */
 public class GroupParser extends SelectParser {
 	
-	public TermsBuilder parse(List<GroupingElement> elements, QueryState state){
+	/**
+	 * Builds the (nested) terms aggregations for the provided GROUP BY elements
+	 * @param elements
+	 * @param having an optional bucket selector added to the aggregation holding the metrics
+	 * @param state
+	 * @return
+	 */
+	@SuppressWarnings("rawtypes")
+	public AggregationBuilder parse(List<GroupingElement> elements, BucketSelectorBuilder having, QueryState state){
 		List<Column> groups = new ArrayList<Column>();
 		for(GroupingElement grouping : elements){
 			for(Set<Expression> expressions : grouping.enumerateGroupingSets()){
@@ -38,81 +53,271 @@ public class GroupParser extends SelectParser {
 		
 		// to find case sensitive group by definitions which ES needs
 		for(Column groupby : groups){
-			if(groupby.getOp() != Operation.NONE){
+			if(groupby.getOp() != Operation.NONE && !groupby.isBucket()){
 				state.addException("Can not use function  '"+groupby.getAggName()+"' as GROUP BY, please use an alias to group by a function");
 				return null;
 			}
 		}
 		Heading.fixColumnReferences(state.originalSql()+";", "group by.+", "\\W", groups);
 		
-		for(Column g : groups){
+		for(int i=0; i<groups.size(); i++){
+			Column g = groups.get(i);
 			Column s = state.getHeading().getColumnByLabel(g.getAggName());
 			if(s == null ){
 				state.addException("Group by '"+g.getColumn()+"' not defined in SELECT");
+			}else if(s.isBucket()){
+				// group on the bucket function defined in the select
+				groups.set(i, s);
 			}else{
 				// add column from select to this group (when referenced through an alias)
 				g.setColumn(s.getColumn());
 			}
 		}
-		return buildAggregationQuery(groups, 0, state);
+		return buildAggregationQuery(groups, 0, having, state);
 	}
 	
 	/**
 	 * Adds aggregations recursively
-	 * All metric columns are added to last aggregation
+	 * All metric columns are added to last aggregation. Terms aggregations return up to fetch.size buckets, 
+	 * only the first one is paged when group.page.size is set. Columns grouped by date_trunc or histogram become
+	 * (date) histogram aggregations which only return non empty buckets, just like terms.
 	 * @param aggs
 	 * @param index
-	 * @param metrics
+	 * @param having optional bucket selector to add next to the metrics
 	 * @return
 	 */
-	private TermsBuilder buildAggregationQuery(List<Column> aggs, int index, QueryState state){
+	@SuppressWarnings("rawtypes")
+	private AggregationBuilder buildAggregationQuery(List<Column> aggs, int index, BucketSelectorBuilder having, QueryState state){
 		Column agg = aggs.get(index);
-		TermsBuilder result = null;
-		if(aggs.get(index).getOp() == Operation.NONE){
-			result = AggregationBuilders.terms(agg.getAggName()).field(agg.getColumn());
-			result.size(state.getIntProp(Utils.PROP_FETCH_SIZE, 10000));
+		AggregationBuilder result = null;
+		if(agg.getOp() == Operation.NONE){
+			result = AggregationBuilders.terms(agg.getAggName()).field(agg.getColumn())
+					.size(state.getIntProp(Utils.PROP_FETCH_SIZE, 10000));
+		}else if(agg.getOp() == Operation.DATE_TRUNC){
+			result = AggregationBuilders.dateHistogram(agg.getAggName()).field(agg.getColumn())
+					.interval(new DateHistogramInterval(agg.getArgument())).minDocCount(1);
+		}else if(agg.getOp() == Operation.HISTOGRAM){
+			result = AggregationBuilders.histogram(agg.getAggName()).field(agg.getColumn())
+					.interval(Long.parseLong(agg.getArgument())).minDocCount(1);
+		}
+		if(index < aggs.size() - 1) result.subAggregation(buildAggregationQuery(aggs, index+1, having, state));
+		else {
+			addMetrics(result, state.getHeading(), true, state);
+			if(having != null) result.subAggregation(having);
 		}
-		if(index < aggs.size() - 1) result.subAggregation(buildAggregationQuery(aggs, index+1, state));
-		else addMetrics(result, state.getHeading(), true); 
 		return result;
 	}
 	
 	/**
 	 * Adds a Filtered Aggregation used to aggregate all results for a query without having a Group By
 	 */
-	public FilterAggregationBuilder buildFilterAggregation(QueryBuilder query, Heading heading){
+	public FilterAggregationBuilder buildFilterAggregation(QueryBuilder query, Heading heading, QueryState state){
 		FilterAggregationBuilder filterAgg = AggregationBuilders.filter("filter").filter(query);
-		addMetrics(filterAgg, heading, false);
+		addMetrics(filterAgg, heading, false, state);
 		return filterAgg;
 	}
 	
 	/**
-	 * Adds a set of 'leaf aggregations' to the provided parent metric (i.e. count, sum, max etc)
+	 * Adds a set of 'leaf aggregations' to the provided parent metric (i.e. count, sum, max etc).
+	 * Metrics calculated on the same field are fused into a single stats aggregation (or extended_stats when
+	 * the standard deviation or variance is requested) so elasticsearch reads the values of the field once.
+	 * COUNT(DISTINCT x) is executed as a cardinality aggregation which is approximate above the configured
+	 * precision threshold.
 	 * @param parentAgg
 	 * @param addCount
 	 */
 	@SuppressWarnings("rawtypes")
-	private void addMetrics(AggregationBuilder parentAgg, Heading heading, boolean addCount){
+	private void addMetrics(AggregationBuilder parentAgg, Heading heading, boolean addCount, QueryState state){
+		int precision = state.getIntProp(Utils.PROP_CARDINALITY_PRECISION, 3000);
+		Set<String> statsFields = new HashSet<String>();
 		for(Column metric : heading.columns()){
-			if(metric.getOp() == Operation.AVG) 
-				parentAgg.subAggregation(AggregationBuilders.avg(metric.getAggName()).field(metric.getColumn()));
+			if(metric.getOp() == Operation.PERCENTILE || metric.getOp() == Operation.PERCENTILE_RANK){
+				// all percentiles (or ranks) of a field are calculated by a single aggregation
+				if(!statsFields.add(metric.getStatsName())) continue;
+				double[] values = percentileArguments(metric, heading);
+				if(metric.getOp() == Operation.PERCENTILE) 
+					parentAgg.subAggregation(valuesOf(AggregationBuilders.percentiles(metric.getStatsName()), metric).percentiles(values));
+				else
+					parentAgg.subAggregation(valuesOf(AggregationBuilders.percentileRanks(metric.getStatsName()), metric).percentiles(values));
+			}else if(isFused(metric, heading, addCount)){
+				if(!statsFields.add(metric.getStatsName())) continue;
+				if(needsExtendedStats(metric.getColumn(), heading)) 
+					parentAgg.subAggregation(valuesOf(AggregationBuilders.extendedStats(metric.getStatsName()), metric));
+				else
+					parentAgg.subAggregation(valuesOf(AggregationBuilders.stats(metric.getStatsName()), metric));
+			}else if(metric.getOp() == Operation.AVG) 
+				parentAgg.subAggregation(valuesOf(AggregationBuilders.avg(metric.getAggName()), metric));
 			else if(addCount && metric.getOp() == Operation.COUNT)
 				parentAgg.subAggregation(AggregationBuilders.count(metric.getAggName()));
+			else if(metric.getOp() == Operation.COUNT_DISTINCT)
+				parentAgg.subAggregation(valuesOf(AggregationBuilders.cardinality(metric.getAggName()), metric)
+						.precisionThreshold(precision));
 			else if(metric.getOp() == Operation.MAX) 
-				parentAgg.subAggregation(AggregationBuilders.max(metric.getAggName()).field(metric.getColumn()));
+				parentAgg.subAggregation(valuesOf(AggregationBuilders.max(metric.getAggName()), metric));
 			else if(metric.getOp() == Operation.MIN) 
-				parentAgg.subAggregation(AggregationBuilders.min(metric.getAggName()).field(metric.getColumn()));
+				parentAgg.subAggregation(valuesOf(AggregationBuilders.min(metric.getAggName()), metric));
 			else if(metric.getOp() == Operation.SUM) 
-				parentAgg.subAggregation(AggregationBuilders.sum(metric.getAggName()).field(metric.getColumn()));
+				parentAgg.subAggregation(valuesOf(AggregationBuilders.sum(metric.getAggName()), metric));
+		}
+	}
+	
+	/**
+	 * Sets the source of the values to aggregate which is either the field of the metric or the script
+	 * calculating the value (like price*qty in sum(price*qty))
+	 * @param agg
+	 * @param metric
+	 * @return
+	 */
+	private static <B extends ValuesSourceMetricsAggregationBuilder<B>> B valuesOf(B agg, Column metric){
+		if(metric.getScript() != null) return agg.script(ScriptParser.script(metric.getScript()));
+		return agg.field(metric.getColumn());
+	}
+	
+	/**
+	 * Returns true if the metric can be taken from a stats aggregation
+	 * @param metric
+	 * @param addCount true if COUNT(field) is calculated by an aggregation (instead of the document count)
+	 * @return
+	 */
+	private static boolean isStatsMetric(Column metric, boolean addCount){
+		if(metric.hasCalculation()) return false;
+		switch(metric.getOp()){
+			case AVG: case SUM: case MIN: case MAX: case STDDEV: case VARIANCE: return true;
+			case COUNT: return addCount && !metric.getColumn().equals("*") && !metric.getColumn().matches("\\d+");
+			default: return false;
+		}
+	}
+	
+	/**
+	 * Returns true if the metric is calculated by a stats (or extended_stats) aggregation on its field which is
+	 * the case when multiple metrics are requested for the same field or when it can only be calculated using
+	 * extended_stats
+	 * @param metric
+	 * @param heading
+	 * @param addCount
+	 * @return
+	 */
+	private static boolean isFused(Column metric, Heading heading, boolean addCount){
+		if(!isStatsMetric(metric, addCount)) return false;
+		if(metric.getOp() == Operation.STDDEV || metric.getOp() == Operation.VARIANCE) return true;
+		int metrics = 0;
+		for(Column col : heading.columns()){
+			if(col.getColumn().equals(metric.getColumn()) && isStatsMetric(col, addCount)) metrics++;
+		}
+		return metrics > 1;
+	}
+	
+	private static boolean needsExtendedStats(String field, Heading heading){
+		for(Column col : heading.columns()){
+			if(col.getColumn().equals(field) && !col.hasCalculation() 
+					&& (col.getOp() == Operation.STDDEV || col.getOp() == Operation.VARIANCE)) return true;
 		}
+		return false;
 	}
 	
-	public TermsBuilder addDistinctAggregation(QueryState state){
+	/**
+	 * Returns the arguments of all columns calculated by the same percentiles (or percentile_ranks) aggregation
+	 * as the provided column
+	 * @param metric
+	 * @param heading
+	 * @return
+	 */
+	private static double[] percentileArguments(Column metric, Heading heading){
+		List<Double> values = new ArrayList<Double>();
+		for(Column col : heading.columns()){
+			if(col.getOp() != metric.getOp() || !col.getColumn().equals(metric.getColumn())) continue;
+			double value = Double.parseDouble(col.getArgument());
+			if(!values.contains(value)) values.add(value);
+		}
+		double[] result = new double[values.size()];
+		for(int i=0; i<result.length; i++) result[i] = values.get(i);
+		return result;
+	}
+	
+	/**
+	 * Returns the buckets path of the provided metric within a terms aggregation built by this parser, like 
+	 * 'sum(x)' or 'stats(x).sum' when the metric is part of a stats aggregation.
+	 * @param metric
+	 * @param heading
+	 * @return the path or NULL if the metric is not calculated by an aggregation
+	 */
+	public static String metricPath(Column metric, Heading heading){
+		if(metric.hasCalculation()) return null;
+		if(isFused(metric, heading, true)){
+			switch(metric.getOp()){
+				case AVG: return metric.getStatsName()+".avg";
+				case SUM: return metric.getStatsName()+".sum";
+				case MIN: return metric.getStatsName()+".min";
+				case MAX: return metric.getStatsName()+".max";
+				case COUNT: return metric.getStatsName()+".count";
+				case STDDEV: return metric.getStatsName()+".std_deviation";
+				case VARIANCE: return metric.getStatsName()+".variance";
+				default: return null;
+			}
+		}
+		switch(metric.getOp()){
+			case COUNT: return metric.getColumn().equals("*") ? "_count" : metric.getAggName();
+			case AVG: case SUM: case MIN: case MAX: case COUNT_DISTINCT: return metric.getAggName();
+			default: return null;
+		}
+	}
+	
+	/**
+	 * Checks if the metric path of the column can be used within a buckets path or terms order. Characters
+	 * used within the path syntax (like the dot in 'avg(a.b)') can not be part of the aggregation name.
+	 * @param path the path as returned by {@link #metricPath(Column, Heading)}
+	 * @param metric
+	 * @return
+	 */
+	public static boolean isValidPath(String path, Column metric){
+		String aggName = path.startsWith(metric.getStatsName()+".") ? metric.getStatsName() : path;
+		return !aggName.matches(".*[\\.\\[\\]>].*");
+	}
+	
+	/**
+	 * Pushes the ordering and limit of a query grouping on a single column into the terms aggregation so only
+	 * the top buckets are returned by elasticsearch instead of all of them. This is only done when all orderings
+	 * are on the group key or on metrics calculated by elasticsearch. The resultset still orders the buckets
+	 * which is harmless as they already are in the right order.
+	 * @param terms the aggregation to push ordering and limit into
+	 * @param orderings
+	 * @param limit the number of buckets required
+	 * @param heading
+	 * @return true if the ordering and limit have been added to the aggregation
+	 */
+	public boolean pushDownOrdering(TermsBuilder terms, List<OrderBy> orderings, int limit, Heading heading){
+		if(orderings.isEmpty() || limit <= 0) return false;
+		int keys = 0;
+		for(Column col : heading.columns()) if((col.getOp() == Operation.NONE || col.isBucket()) && col.getCalculation() == null) keys++;
+		if(keys != 1) return false; // only a single level of buckets can be truncated safely
+		
+		List<Terms.Order> order = new ArrayList<Terms.Order>();
+		for(OrderBy ob : orderings){
+			Column col = heading.getColumn(ob.getIndex());
+			boolean asc = ob.getOrder() == SortOrder.ASC;
+			if(col.hasCalculation()) return false;
+			if(col.getOp() == Operation.NONE){
+				order.add(Terms.Order.term(asc));
+				continue;
+			}
+			String path = metricPath(col, heading);
+			if(path == null || !isValidPath(path, col)) return false;
+			order.add(path.equals("_count") ? Terms.Order.count(asc) : Terms.Order.aggregation(path, asc));
+		}
+		terms.order(order.size() == 1 ? order.get(0) : Terms.Order.compound(order));
+		terms.size(limit);
+		// same headroom elasticsearch uses by default to keep the top buckets accurate
+		terms.shardSize((int)(limit * 1.5) + 10);
+		return true;
+	}
+	
+	@SuppressWarnings("rawtypes")
+	public AggregationBuilder addDistinctAggregation(QueryState state){
 		List<Column> distinct = new ArrayList<Column>();
 		for(Column s : state.getHeading().columns()){
-			if(s.getOp() == Operation.NONE && s.getCalculation() == null) distinct.add(s);
+			if((s.getOp() == Operation.NONE || s.isBucket()) && s.getCalculation() == null) distinct.add(s);
 		}
-		return buildAggregationQuery(distinct, 0, state);
+		return buildAggregationQuery(distinct, 0, null, state);
 	}
 	
 }
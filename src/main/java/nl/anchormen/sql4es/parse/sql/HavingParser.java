@@ -1,5 +1,13 @@
 package nl.anchormen.sql4es.parse.sql;
 
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptService.ScriptType;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregatorBuilders;
+import org.elasticsearch.search.aggregations.pipeline.having.BucketSelectorBuilder;
+
 import com.facebook.presto.sql.tree.AstVisitor;
 import com.facebook.presto.sql.tree.BooleanLiteral;
 import com.facebook.presto.sql.tree.ComparisonExpression;
@@ -23,7 +31,7 @@ import com.facebook.presto.sql.tree.QualifiedNameReference;
 import com.facebook.presto.sql.tree.StringLiteral;
 
 /**
- * A Presto {@link AstVisitor} implementation that parses GROUP BY clauses
+ * A Presto {@link AstVisitor} implementation that parses HAVING clauses
  * 
  * @author cversloot
  *
@@ -87,4 +95,71 @@ public class HavingParser extends AstVisitor<IComparison, QueryState>{
 		return null;
 	}
 	
+	/**
+	 * Translates the parsed HAVING clause into a bucket_selector pipeline aggregation which can be added to the
+	 * terms aggregation holding the metrics so elasticsearch removes buckets before returning them. The condition
+	 * is evaluated as a Lucene expression script. Only comparisons between metrics calculated by elasticsearch
+	 * and numeric literals can be translated.
+	 * @param having
+	 * @param heading
+	 * @return the bucket selector or NULL if the clause can not be executed by elasticsearch
+	 */
+	public BucketSelectorBuilder buildBucketSelector(IComparison having, Heading heading){
+		Map<String, String> bucketPaths = new HashMap<String, String>();
+		String script = toScript(having, heading, bucketPaths);
+		if(script == null) return null;
+		return PipelineAggregatorBuilders.having("having").setBucketsPathsMap(bucketPaths)
+				.script(new Script(script, ScriptType.INLINE, "expression", null));
+	}
+	
+	/**
+	 * Recursively builds the expression for the provided comparison, adding the buckets_path of each 
+	 * referenced metric as a variable
+	 * @param comparison
+	 * @param bucketPaths
+	 * @return the expression or NULL if the comparison can not be translated
+	 */
+	private String toScript(IComparison comparison, Heading heading, Map<String, String> bucketPaths){
+		if(comparison instanceof BooleanComparison){
+			BooleanComparison bc = (BooleanComparison)comparison;
+			String left = toScript(bc.getLeft(), heading, bucketPaths);
+			String right = toScript(bc.getRight(), heading, bucketPaths);
+			if(left == null || right == null) return null;
+			return "("+left+(bc.isMust() ? " && " : " || ")+right+")";
+		}else if(comparison instanceof SimpleComparison){
+			SimpleComparison sc = (SimpleComparison)comparison;
+			String left = bucketVariable(sc.getLeftColumn(), heading, bucketPaths);
+			String right = sc.getRightColumn() != null ? bucketVariable(sc.getRightColumn(), heading, bucketPaths)
+					: sc.getRightValue() != null ? sc.getRightValue().toString() : null;
+			if(left == null || right == null) return null;
+			switch(sc.getComparisonType()){
+				case EQUAL: return left+" == "+right;
+				case NOT_EQUAL: return left+" != "+right;
+				case GREATER_THAN: return left+" > "+right;
+				case GREATER_THAN_OR_EQUAL: return left+" >= "+right;
+				case LESS_THAN: return left+" < "+right;
+				case LESS_THAN_OR_EQUAL: return left+" <= "+right;
+				default: return null;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the script variable referring to the metric of the provided column
+	 * @param column
+	 * @param bucketPaths
+	 * @return the variable or NULL if the column is not a metric that can be referenced
+	 */
+	private String bucketVariable(Column column, Heading heading, Map<String, String> bucketPaths){
+		String path = GroupParser.metricPath(column, heading);
+		if(path == null || !GroupParser.isValidPath(path, column)) return null;
+		for(Map.Entry<String, String> entry : bucketPaths.entrySet()){
+			if(entry.getValue().equals(path)) return entry.getKey();
+		}
+		String var = "v"+bucketPaths.size();
+		bucketPaths.put(var, path);
+		return var;
+	}
+	
 }
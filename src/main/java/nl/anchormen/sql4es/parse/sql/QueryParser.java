@@ -3,16 +3,22 @@ package nl.anchormen.sql4es.parse.sql;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.bucket.terms.TermsBuilder;
+import org.elasticsearch.search.aggregations.pipeline.having.BucketSelectorBuilder;
 import org.elasticsearch.search.sort.SortOrder;
 
 import com.facebook.presto.sql.tree.AstVisitor;
@@ -24,11 +30,16 @@ import com.facebook.presto.sql.tree.SortItem;
 
 import nl.anchormen.sql4es.QueryState;
 import nl.anchormen.sql4es.model.BasicQueryState;
+import nl.anchormen.sql4es.model.Column;
+import nl.anchormen.sql4es.model.Column.Operation;
 import nl.anchormen.sql4es.model.Heading;
 import nl.anchormen.sql4es.model.OrderBy;
 import nl.anchormen.sql4es.model.TableRelation;
 import nl.anchormen.sql4es.model.Utils;
+import nl.anchormen.sql4es.model.expression.ColumnReference;
+import nl.anchormen.sql4es.model.expression.ICalculation;
 import nl.anchormen.sql4es.model.expression.IComparison;
+import nl.anchormen.sql4es.model.expression.SimpleCalculation;
 
 /**
  * Interprets the parsed query and build the appropriate ES query (a {@link SearchRequestBuilder} instance). 
@@ -58,7 +69,9 @@ public class QueryParser extends AstVisitor<Object[], SearchRequestBuilder>{
 	 * @param searchReq the request to build from
 	 * @param props a set of properties to use in certain cases
 	 * @param tableColumnInfo mapping from available tables to columns and their typesd
-	 * @return an array containing [ {@link Heading}, {@link IComparison} having, List&lt;{@link OrderBy}&gt; orderings, Integer limit]
+	 * @return an array containing [ {@link Heading}, {@link IComparison} having, List&lt;{@link OrderBy}&gt; orderings, Integer limit, 
+	 * {@link QueryBuilder} query to page groups with (null if groups are not paged), Boolean count only, 
+	 * {@link TermsBuilder} aggregation of the paged groups (null if groups are not paged)]
 	 * @throws SQLException
 	 */
 	public Object[] parse(String sql, QueryBody queryBody, int maxRows, SearchRequestBuilder searchReq, 
@@ -71,7 +84,7 @@ public class QueryParser extends AstVisitor<Object[], SearchRequestBuilder>{
 		if(queryBody instanceof QuerySpecification){
 			Object[] result = queryBody.accept(this, searchReq);
 			if(result.length > 0 && result[0] instanceof QueryState ) throw ((QueryState)result[0]).getException();
-			else if (result.length < 4) throw new SQLException("Failed to parse query due to unknown reason");
+			else if (result.length < 7) throw new SQLException("Failed to parse query due to unknown reason");
 			return result;
 		}
 		throw new SQLException("The provided query does not contain a QueryBody");
@@ -89,6 +102,7 @@ public class QueryParser extends AstVisitor<Object[], SearchRequestBuilder>{
 		IComparison having = null;
 		List<OrderBy> orderings = new ArrayList<>();
 		boolean useCache = false;
+		boolean countOnly = false;
 		
 		// check for distinct in combination with group by
 		if(node.getSelect().isDistinct() && !node.getGroupBy().isEmpty()){
@@ -145,18 +159,36 @@ public class QueryParser extends AstVisitor<Object[], SearchRequestBuilder>{
 		}
 		if(state.hasException()) return new Object[]{state};
 		
+		// parse Having, it is executed by elasticsearch on the buckets when possible and client side otherwise
+		// groups fetched page by page are filtered client side, buckets removed by a selector would end paging early
+		boolean grouped = node.getGroupBy() != null && node.getGroupBy().size() > 0;
+		int groupPageSize = Utils.getIntProp(props, Utils.PROP_GROUP_PAGE_SIZE, 0);
+		boolean paged = groupPageSize > 0 && node.getOrderBy().isEmpty();
+		BucketSelectorBuilder havingSelector = null;
+		if(node.getHaving().isPresent()){
+			having = node.getHaving().get().accept(havingParser, state);
+			if(state.hasException()) return new Object[]{state};
+			if(grouped && !paged) havingSelector = havingParser.buildBucketSelector(having, heading);
+		}
+		
+		// bucket functions are executed by the aggregation grouping on them
+		if(!grouped && !node.getSelect().isDistinct()){
+			for(Column col : heading.columns()) if(col.isBucket()){
+				state.addException("Function "+col.getLabel()+" can only be used together with GROUP BY or DISTINCT");
+				return new Object[]{state};
+			}
+		}
+		
 		// parse group by and create aggregations accordingly
-		if(node.getGroupBy() != null && node.getGroupBy().size() > 0){
-			aggregation = groupParser.parse(node.getGroupBy(), state);
+		if(grouped){
+			aggregation = groupParser.parse(node.getGroupBy(), havingSelector, state);
+			if(havingSelector != null) having = null;
+		}else if(heading.countOnly() && !node.getSelect().isDistinct()){
+			countOnly = true; // the total number of hits is the count, no aggregation required
 		}else if(heading.aggregateOnly()){
-			aggregation = groupParser.buildFilterAggregation(query, heading);
+			aggregation = groupParser.buildFilterAggregation(query, heading, state);
 		}
 		if(state.hasException()) return new Object[]{state};
-		
-		// parse Having (is executed client side after results have been fetched)
-		if(node.getHaving().isPresent()){
-			having = node.getHaving().get().accept(havingParser, state);
-		}
 
 		// parse ORDER BY
 		if(!node.getOrderBy().isEmpty()){
@@ -168,24 +200,39 @@ public class QueryParser extends AstVisitor<Object[], SearchRequestBuilder>{
 		}
 		if(state.hasException()) return new Object[]{state};
 		
-		buildQuery(searchReq, relations, query, aggregation, orderings, limit, useCache, requestScore) ;
-		return new Object[]{heading, having, orderings, limit};
+		// let elasticsearch return only the top buckets (not possible when buckets are filtered afterwards)
+		if(aggregation instanceof TermsBuilder && !node.getHaving().isPresent()){
+			groupParser.pushDownOrdering((TermsBuilder)aggregation, orderings, determineLimit(limit), heading);
+		}
+		
+		// fetch groups page by page ordered on the first group key, only possible when ordering is not required
+		QueryBuilder pagingQuery = null;
+		TermsBuilder pagingAgg = null;
+		if(aggregation instanceof TermsBuilder && paged && havingSelector == null){
+			pagingAgg = ((TermsBuilder)aggregation).order(Terms.Order.term(true)).size(groupPageSize);
+			pagingQuery = query;
+		}
+		
+		buildQuery(searchReq, heading, relations, query, aggregation, orderings, limit, useCache, requestScore, countOnly) ;
+		return new Object[]{heading, having, orderings, limit, pagingQuery, countOnly, pagingAgg};
 	}
 
 	/**
 	 * Builds the actual Elasticsearch request using all the information provided
 	 * @param searchReq a
+	 * @param heading a
 	 * @param relations a
 	 * @param query a
 	 * @param aggregation a
 	 * @param orderings a
 	 * @param limit a
 	 * @param useCache a
+	 * @param countOnly true if only the total number of hits is required
 	 */
 	@SuppressWarnings("rawtypes")
-	private void buildQuery(SearchRequestBuilder searchReq, List<TableRelation> relations,
+	private void buildQuery(SearchRequestBuilder searchReq, Heading heading, List<TableRelation> relations,
 	                        QueryBuilder query, AggregationBuilder aggregation, List<OrderBy> orderings,
-	                        int limit, boolean useCache, boolean requestScore) {
+	                        int limit, boolean useCache, boolean requestScore, boolean countOnly) {
 		String[] types = new String[relations.size()];
 		for(int i=0; i<relations.size(); i++) types[i] = relations.get(i).getTable(); 
 		SearchRequestBuilder req = searchReq.setTypes(types);
@@ -197,6 +244,9 @@ public class QueryParser extends AstVisitor<Object[], SearchRequestBuilder>{
 			req.addAggregation(aggregation);
 			
 		// ordering does not work on aggregations (has to be done in client)
+		}else if(countOnly){
+			// the total number of hits is only affected by the query (not a post filter) 
+			req.setQuery(query != null ? query : QueryBuilders.matchAllQuery());
 		}else if(query != null){
 			if(requestScore) req.setQuery(query); // use query instead of filter to get a score
 			else req.setPostFilter(query);
@@ -207,9 +257,16 @@ public class QueryParser extends AstVisitor<Object[], SearchRequestBuilder>{
 			}
 		} else req.setQuery(QueryBuilders.matchAllQuery());
 		
+		// only fetch the part of the _source that is actually selected
+		if(aggregation == null && !countOnly){
+			Map<String, Integer> fieldTypes = typesForColumns(relations);
+			if(Utils.getBooleanProp(props, Utils.PROP_SCRIPT_FIELDS, false)) addScriptFields(req, heading, fieldTypes);
+			addSourceFilter(req, heading, fieldTypes);
+		}
+		
 		int fetchSize = Utils.getIntProp(props, Utils.PROP_FETCH_SIZE, 10000);
 		// add limit and determine to use scroll
-		if(aggregation != null) {
+		if(aggregation != null || countOnly) {
 			req = req.setSize(0);
 		} else if(determineLimit(limit) > 0 && determineLimit(limit)  < fetchSize){
 			req.setSize(determineLimit(limit) );
@@ -224,6 +281,94 @@ public class QueryParser extends AstVisitor<Object[], SearchRequestBuilder>{
 		req.setTimeout(TimeValue.timeValueMillis(Utils.getIntProp(props, Utils.PROP_QUERY_TIMEOUT_MS, 10000)));
 	}
 
+	/**
+	 * Requests the calculations in the SELECT which only refer to numeric fields of the document as 
+	 * script_fields so elasticsearch returns their results
+	 * @param req
+	 * @param heading
+	 * @param types the sql types of the fields in the queried tables
+	 */
+	private void addScriptFields(SearchRequestBuilder req, Heading heading, Map<String, Integer> types){
+		for(Column col : heading.columns()){
+			if(!col.hasCalculation()) continue;
+			String script = ScriptParser.toScript(col.getCalculation(), types);
+			if(script == null) continue;
+			req.addScriptField(col.getLabel(), ScriptParser.script(script));
+			col.setScript(script);
+		}
+	}
+	
+	/**
+	 * Adds all columns referred to by the calculation to the provided set
+	 * @param calc
+	 * @param columns
+	 */
+	private void referencedColumns(ICalculation calc, Set<Column> columns){
+		if(calc instanceof ColumnReference) columns.add(((ColumnReference)calc).getColumn());
+		else if(calc instanceof SimpleCalculation){
+			referencedColumns(((SimpleCalculation)calc).left(), columns);
+			referencedColumns(((SimpleCalculation)calc).right(), columns);
+		}
+	}
+	
+	/**
+	 * Restricts the _source returned by elasticsearch to the fields present in the heading (including
+	 * invisible ones used in calculations not executed by elasticsearch). Both the field and all of its children are included so selecting
+	 * the root of a nested object still returns the full object. Nothing is done when all columns are selected.
+	 * When fetching from doc values is enabled numeric top level fields are requested as fielddata_fields instead.
+	 * @param req
+	 * @param heading
+	 * @param types the sql types of the fields in the queried tables
+	 */
+	private void addSourceFilter(SearchRequestBuilder req, Heading heading, Map<String, Integer> types){
+		if(heading.hasAllCols()) return;
+		boolean docValues = Utils.getBooleanProp(props, Utils.PROP_FETCH_DOC_VALUES, false);
+		List<String> includes = new ArrayList<String>();
+		// hidden columns only used by calculations executed as script_fields do not have to be fetched
+		Set<Column> scripted = Collections.newSetFromMap(new IdentityHashMap<Column, Boolean>());
+		Set<Column> calculated = Collections.newSetFromMap(new IdentityHashMap<Column, Boolean>());
+		for(Column col : heading.columns()){
+			if(col.hasCalculation()) referencedColumns(col.getCalculation(), col.getScript() != null ? scripted : calculated);
+		}
+		for(Column col : heading.columns()){
+			if(col.getOp() != Operation.NONE || col.hasCalculation()) continue;
+			if(!col.isVisible() && scripted.contains(col) && !calculated.contains(col)) continue;
+			String field = col.getColumn();
+			if(field.equals(Heading.ID) || field.equals(Heading.INDEX) || field.equals(Heading.TYPE) 
+					|| field.equals(Heading.SCORE) || field.equals(Heading.SEARCH)) continue;
+			if(docValues && hasDocValues(field, types)){
+				req.addFieldDataField(field);
+				continue;
+			}
+			if(includes.contains(field)) continue;
+			includes.add(field);
+			includes.add(field+".*");
+		}
+		if(includes.isEmpty()) req.setFetchSource(false);
+		else req.setFetchSource(includes.toArray(new String[includes.size()]), null);
+	}
+
+	/**
+	 * Returns true if the field can be read from doc values with the same result as from the _source. This is
+	 * limited to numeric top level fields because analyzed strings and dates are returned in a different 
+	 * form than they are stored and nested fields are not available on the document itself.
+	 * @param field
+	 * @param types
+	 * @return
+	 */
+	private boolean hasDocValues(String field, Map<String, Integer> types){
+		if(field.contains(".") || !types.containsKey(field)) return false;
+		switch(types.get(field)){
+			case Types.BIGINT:
+			case Types.INTEGER:
+			case Types.SMALLINT:
+			case Types.TINYINT:
+			case Types.DOUBLE:
+			case Types.FLOAT: return true;
+			default: return false;
+		}
+	}
+
 	/**
 	 * Gets SQL column types for the provided tables as a map from colname to java.sql.Types
 	 * @param relations a
@@ -0,0 +1,133 @@
+package nl.anchormen.sql4es.parse.sql;
+
+import java.sql.Types;
+import java.util.Map;
+
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptService.ScriptType;
+
+import com.facebook.presto.sql.tree.ArithmeticBinaryExpression;
+import com.facebook.presto.sql.tree.ArithmeticUnaryExpression;
+import com.facebook.presto.sql.tree.ArithmeticUnaryExpression.Sign;
+import com.facebook.presto.sql.tree.DereferenceExpression;
+import com.facebook.presto.sql.tree.DoubleLiteral;
+import com.facebook.presto.sql.tree.Expression;
+import com.facebook.presto.sql.tree.LongLiteral;
+import com.facebook.presto.sql.tree.QualifiedNameReference;
+
+import nl.anchormen.sql4es.QueryState;
+import nl.anchormen.sql4es.model.Column.Operation;
+import nl.anchormen.sql4es.model.expression.ColumnReference;
+import nl.anchormen.sql4es.model.expression.ICalculation;
+import nl.anchormen.sql4es.model.expression.SimpleCalculation;
+import nl.anchormen.sql4es.model.expression.SingleValue;
+
+/**
+ * Translates arithmetic on fields into Lucene expression scripts which are executed by elasticsearch. This is
+ * used for calculations within metrics like sum(price*qty) and, when enabled, for calculations in the SELECT
+ * of queries without aggregation which are then requested as script_fields. Expressions can only read
+ * numeric fields from doc values, the value of a document without the field is 0.
+ *
+ * @author cversloot
+ *
+ */
+public class ScriptParser {
+
+	public static final String LANG = "expression";
+
+	/**
+	 * Creates an inline expression script
+	 * @param source
+	 * @return
+	 */
+	public static Script script(String source){
+		return new Script(source, ScriptType.INLINE, LANG, null);
+	}
+
+	/**
+	 * Translates the arithmetic expression used as argument of a metric (like price * qty in sum(price * qty)).
+	 * Field names are resolved the same way as columns in the SELECT, stripping the table (alias) they may be 
+	 * prefixed with.
+	 * @param node
+	 * @param state
+	 * @return the script or NULL if the expression can not be translated
+	 */
+	public static String toScript(Expression node, QueryState state){
+		if(node instanceof LongLiteral) return ""+((LongLiteral)node).getValue();
+		else if(node instanceof DoubleLiteral) return ""+((DoubleLiteral)node).getValue();
+		else if(node instanceof QualifiedNameReference) return docValue(field(((QualifiedNameReference)node).getName().toString(), state));
+		else if(node instanceof DereferenceExpression) return docValue(field(SelectParser.visitDereferenceExpression((DereferenceExpression)node), state));
+		else if(node instanceof ArithmeticUnaryExpression){
+			ArithmeticUnaryExpression unary = (ArithmeticUnaryExpression)node;
+			String value = toScript(unary.getValue(), state);
+			if(value == null) return null;
+			return unary.getSign() == Sign.MINUS ? "-("+value+")" : value;
+		}else if(node instanceof ArithmeticBinaryExpression){
+			ArithmeticBinaryExpression binary = (ArithmeticBinaryExpression)node;
+			String left = toScript(binary.getLeft(), state);
+			String right = toScript(binary.getRight(), state);
+			if(left == null || right == null) return null;
+			return "("+left+" "+operator(binary.getType())+" "+right+")";
+		}
+		return null;
+	}
+	
+	private static String field(String name, QueryState state){
+		return SelectParser.createColumn(name, null, state, "select.+", ".+from").getColumn();
+	}
+
+	/**
+	 * Translates a calculation in the SELECT of a query without aggregation. This is only possible if it solely
+	 * refers to numeric top level fields of the current document.
+	 * @param calc
+	 * @param types the sql types of the fields in the queried tables
+	 * @return the script or NULL if the calculation can not be executed by elasticsearch
+	 */
+	public static String toScript(ICalculation calc, Map<String, Integer> types){
+		if(calc instanceof SingleValue){
+			return ""+((SingleValue)calc).getValue();
+		}else if(calc instanceof ColumnReference){
+			ColumnReference ref = (ColumnReference)calc;
+			String field = ref.getColumn().getColumn();
+			if(ref.getOffset() != 0 || ref.getColumn().getOp() != Operation.NONE || ref.getColumn().hasCalculation()) return null;
+			if(field.contains(".") || !isNumeric(types.get(field))) return null;
+			return ref.getSign() == Sign.MINUS ? "-"+docValue(field) : docValue(field);
+		}else if(calc instanceof SimpleCalculation){
+			SimpleCalculation sc = (SimpleCalculation)calc;
+			String left = toScript(sc.left(), types);
+			String right = toScript(sc.right(), types);
+			if(left == null || right == null) return null;
+			String script = "("+left+" "+operator(sc.getType())+" "+right+")";
+			return sc.getSign() == Sign.MINUS ? "-"+script : script;
+		}
+		return null;
+	}
+
+	private static String docValue(String field){
+		if(field.contains("'") || field.contains("\\")) return null;
+		return "doc['"+field+"'].value";
+	}
+
+	private static boolean isNumeric(Integer type){
+		if(type == null) return false;
+		switch(type){
+			case Types.BIGINT:
+			case Types.INTEGER:
+			case Types.SMALLINT:
+			case Types.TINYINT:
+			case Types.DOUBLE:
+			case Types.FLOAT: return true;
+			default: return false;
+		}
+	}
+
+	private static String operator(ArithmeticBinaryExpression.Type type){
+		switch(type){
+			case ADD: return "+";
+			case DIVIDE: return "/";
+			case MODULUS: return "%";
+			case MULTIPLY: return "*";
+			default: return "-";
+		}
+	}
+}
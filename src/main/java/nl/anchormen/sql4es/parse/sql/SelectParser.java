@@ -1,5 +1,8 @@
 package nl.anchormen.sql4es.parse.sql;
 
+import java.util.Arrays;
+import java.util.List;
+
 import com.facebook.presto.sql.tree.ArithmeticBinaryExpression;
 import com.facebook.presto.sql.tree.ArithmeticUnaryExpression;
 import com.facebook.presto.sql.tree.ArithmeticUnaryExpression.Sign;
@@ -24,6 +27,7 @@ import com.facebook.presto.sql.tree.LongLiteral;
 import com.facebook.presto.sql.tree.QualifiedNameReference;
 import com.facebook.presto.sql.tree.SelectItem;
 import com.facebook.presto.sql.tree.SingleColumn;
+import com.facebook.presto.sql.tree.StringLiteral;
 import com.facebook.presto.sql.tree.SubscriptExpression;
 
 /**
@@ -36,6 +40,8 @@ import com.facebook.presto.sql.tree.SubscriptExpression;
  */
 public class SelectParser extends AstVisitor<Object, QueryState>{
 
+	private static final List<String> DATE_UNITS = Arrays.asList("second", "minute", "hour", "day", "week", "month", "quarter", "year");
+
 	@Override
 	protected Object visitSelectItem(SelectItem node, QueryState state){
 		if(node instanceof SingleColumn){
@@ -79,9 +85,17 @@ public class SelectParser extends AstVisitor<Object, QueryState>{
 		}else if(node instanceof FunctionCall){
 			FunctionCall fc = (FunctionCall)node;
 			String operator = fc.getName().toString();
+			if(operator.equalsIgnoreCase("date_trunc") || operator.equalsIgnoreCase("histogram")){
+				return createBucketColumn(fc, state);
+			}else if(operator.equalsIgnoreCase("percentile") || operator.equalsIgnoreCase("percentile_rank")){
+				return createPercentileColumn(fc, state);
+			}
 			
 			String column;
-			if(fc.getArguments().size() == 0) column = "*";
+			if(fc.getArguments().size() == 1 && (fc.getArguments().get(0) instanceof ArithmeticBinaryExpression
+					|| fc.getArguments().get(0) instanceof ArithmeticUnaryExpression)){
+				return createScriptMetric(fc, state);
+			}else if(fc.getArguments().size() == 0) column = "*";
 			else if(fc.getArguments().get(0) instanceof LongLiteral) 
 				column = ""+((LongLiteral)fc.getArguments().get(0)).getValue();  
 			else if(fc.getArguments().get(0) instanceof DereferenceExpression)
@@ -90,7 +104,15 @@ public class SelectParser extends AstVisitor<Object, QueryState>{
 				 column = ((QualifiedNameReference)fc.getArguments().get(0)).getName().toString();
 			}
 			try{
-				return createColumn(column, Operation.valueOf(operator.trim().toUpperCase()), state, "select.+", ".+from");
+				Operation op = Operation.valueOf(operator.trim().toUpperCase());
+				if(fc.isDistinct()){
+					if(op != Operation.COUNT || column.equals("*")){
+						state.addException("DISTINCT is only supported within COUNT(DISTINCT column)");
+						return null;
+					}
+					op = Operation.COUNT_DISTINCT;
+				}
+				return createColumn(column, op, state, "select.+", ".+from");
 			}catch(Exception e){
 				state.addException("Unable to parse function due to: "+e.getMessage());
 				return null;
@@ -176,6 +198,92 @@ public class SelectParser extends AstVisitor<Object, QueryState>{
 		}
 	}
 	
+	/**
+	 * Creates the column for a function grouping values into buckets: date_trunc('unit', field) which is executed
+	 * as a date_histogram aggregation or histogram(field, interval) executed as a histogram aggregation.
+	 * @param fc
+	 * @param state
+	 * @return the column or NULL if the function call is invalid
+	 */
+	private Column createBucketColumn(FunctionCall fc, QueryState state){
+		boolean date = fc.getName().toString().equalsIgnoreCase("date_trunc");
+		if(fc.getArguments().size() != 2){
+			state.addException(fc.getName()+" requires two arguments");
+			return null;
+		}
+		Expression field = fc.getArguments().get(date ? 1 : 0);
+		Expression interval = fc.getArguments().get(date ? 0 : 1);
+		String column = null;
+		if(field instanceof DereferenceExpression) column = visitDereferenceExpression((DereferenceExpression)field);
+		else if(field instanceof QualifiedNameReference) column = ((QualifiedNameReference)field).getName().toString();
+		String value = null;
+		if(date && interval instanceof StringLiteral) value = ((StringLiteral)interval).getValue().toLowerCase();
+		else if(!date && interval instanceof LongLiteral && ((LongLiteral)interval).getValue() > 0) 
+			value = ""+((LongLiteral)interval).getValue();
+		if(column == null || value == null || (date && !DATE_UNITS.contains(value))){
+			state.addException("Unable to parse "+fc+", use date_trunc('unit', field) with unit any of "+DATE_UNITS
+					+" or histogram(field, interval) with a positive integer interval");
+			return null;
+		}
+		Column col = createColumn(column, date ? Operation.DATE_TRUNC : Operation.HISTOGRAM, state, "select.+", ".+from");
+		return col.setArgument(value);
+	}
+	
+	/**
+	 * Creates the column for a metric on the result of arithmetic on fields like sum(price * qty). The values
+	 * to aggregate are calculated by a script for every document.
+	 * @param fc
+	 * @param state
+	 * @return the column or NULL if the function call is invalid
+	 */
+	private Column createScriptMetric(FunctionCall fc, QueryState state){
+		Operation op;
+		try{
+			op = Operation.valueOf(fc.getName().toString().trim().toUpperCase());
+		}catch(Exception e){
+			op = Operation.NONE;
+		}
+		Expression arg = fc.getArguments().get(0);
+		String script = ScriptParser.toScript(arg, state);
+		if(fc.isDistinct() || script == null || (op != Operation.SUM && op != Operation.AVG && op != Operation.MIN && op != Operation.MAX)){
+			state.addException("Unable to parse "+fc+", arithmetic can only be aggregated using sum, avg, min and max"
+					+ " and may only refer to fields and numbers");
+			return null;
+		}
+		String name = arg.toString().trim().replaceAll("\"", "");
+		if(name.startsWith("(") && name.endsWith(")")) name = name.substring(1, name.length()-1);
+		return new Column(name, op).setScript(script);
+	}
+	
+	/**
+	 * Creates the column for percentile(field, percent) or percentile_rank(field, value) which are executed as
+	 * percentiles and percentile_ranks aggregations
+	 * @param fc
+	 * @param state
+	 * @return the column or NULL if the function call is invalid
+	 */
+	private Column createPercentileColumn(FunctionCall fc, QueryState state){
+		boolean rank = fc.getName().toString().equalsIgnoreCase("percentile_rank");
+		String column = null;
+		String value = null;
+		if(fc.getArguments().size() == 2){
+			Expression field = fc.getArguments().get(0);
+			Expression arg = fc.getArguments().get(1);
+			if(field instanceof DereferenceExpression) column = visitDereferenceExpression((DereferenceExpression)field);
+			else if(field instanceof QualifiedNameReference) column = ((QualifiedNameReference)field).getName().toString();
+			if(arg instanceof LongLiteral) value = ""+((LongLiteral)arg).getValue();
+			else if(arg instanceof DoubleLiteral) value = ""+((DoubleLiteral)arg).getValue();
+			if(value != null && !rank && (Double.parseDouble(value) < 0 || Double.parseDouble(value) > 100)) value = null;
+		}
+		if(column == null || value == null){
+			state.addException("Unable to parse "+fc+", use percentile(field, percent) with a percent between 0 and 100"
+					+ " or percentile_rank(field, value)");
+			return null;
+		}
+		Column col = createColumn(column, rank ? Operation.PERCENTILE_RANK : Operation.PERCENTILE, state, "select.+", ".+from");
+		return col.setArgument(value);
+	}
+	
 	/**
 	 * Create's a Column for the provided name and list with tables. This 
 	 * @param name